@@ -0,0 +1,99 @@
+package vg.civcraft.mc.civmodcore.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+import net.minecraft.server.v1_8_R3.DispenserRegistry;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.craftbukkit.v1_8_R3.inventory.CraftItemFactory;
+
+/**
+ * Minimal stand in for a running server, which provides just enough for item
+ * handling to work outside of it. The vanilla item and block registries are
+ * bootstrapped and Bukkit is given a server, which only knows the CraftBukkit
+ * item factory and a logger. Every other server method returns null, 0 or
+ * false.
+ *
+ */
+public final class BenchmarkServer {
+
+	private static boolean initialized = false;
+
+	private BenchmarkServer() {
+	}
+
+	/**
+	 * Sets up the stub server, subsequent calls do nothing
+	 */
+	public static synchronized void init() {
+		if (initialized) {
+			return;
+		}
+		DispenserRegistry.c();
+		Bukkit.setServer((Server) Proxy.newProxyInstance(
+				Server.class.getClassLoader(), new Class<?>[] { Server.class },
+				new StubServerHandler()));
+		initialized = true;
+	}
+
+	private static class StubServerHandler implements InvocationHandler {
+		private final Logger logger = Logger.getLogger("BenchmarkServer");
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "getItemFactory":
+				return CraftItemFactory.instance();
+			case "getLogger":
+				return logger;
+			case "getName":
+				return "BenchmarkServer";
+			case "getVersion":
+			case "getBukkitVersion":
+				return "benchmark";
+			case "isPrimaryThread":
+				return true;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "BenchmarkServer";
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		}
+
+		private static Object defaultValue(Class<?> type) {
+			if (!type.isPrimitive() || type == void.class) {
+				return null;
+			}
+			if (type == boolean.class) {
+				return false;
+			}
+			if (type == char.class) {
+				return '\0';
+			}
+			if (type == long.class) {
+				return 0L;
+			}
+			if (type == float.class) {
+				return 0f;
+			}
+			if (type == double.class) {
+				return 0d;
+			}
+			if (type == byte.class) {
+				return (byte) 0;
+			}
+			if (type == short.class) {
+				return (short) 0;
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package vg.civcraft.mc.civmodcore.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vg.civcraft.mc.civmodcore.benchmarks.InventoryFixtures.ContentShape;
+import vg.civcraft.mc.civmodcore.itemHandling.ItemMap;
+
+/**
+ * Benchmarks comparing ItemMaps against inventories and removing them from
+ * inventories
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryComparisonBenchmark {
+
+	@Param({ "27", "54" })
+	public int slots;
+
+	@Param({ "PLAIN", "ENCHANTED", "LORED", "MIXED" })
+	public ContentShape shape;
+
+	private ItemStack[] contents;
+	private Inventory inventory;
+	/**
+	 * Every second stack of the inventory, so it's always contained
+	 */
+	private ItemMap required;
+	/**
+	 * Unrelated content, which may or may not fit
+	 */
+	private ItemMap toInsert;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkServer.init();
+		contents = InventoryFixtures.createContents(slots, shape, 1L);
+		inventory = InventoryFixtures.createInventory(contents);
+		required = new ItemMap();
+		List<ItemStack> stacks = InventoryFixtures.nonEmpty(contents);
+		for (int i = 0; i < stacks.size(); i += 2) {
+			required.addItemStack(stacks.get(i));
+		}
+		toInsert = new ItemMap(InventoryFixtures.nonEmpty(InventoryFixtures
+				.createContents(9, shape, 2L)));
+	}
+
+	@Benchmark
+	public boolean isContainedIn() {
+		return required.isContainedIn(inventory);
+	}
+
+	@Benchmark
+	public boolean fitsIn() {
+		return toInsert.fitsIn(inventory);
+	}
+
+	@Benchmark
+	public boolean planRemoval() {
+		return required.planRemovalFrom(inventory).isSatisfiable();
+	}
+
+	@Benchmark
+	public boolean removeSafelyFrom(DrainedInventory drained) {
+		return required.removeSafelyFrom(drained.inventory);
+	}
+
+	/**
+	 * Inventory which is refilled before every invocation, because removing
+	 * from it modifies it
+	 */
+	@State(Scope.Thread)
+	public static class DrainedInventory {
+		private Inventory inventory;
+
+		@Setup(Level.Invocation)
+		public void refill(InventoryComparisonBenchmark benchmark) {
+			if (inventory == null) {
+				inventory = InventoryFixtures
+						.createInventory(benchmark.contents);
+			} else {
+				InventoryFixtures.fill(inventory, benchmark.contents);
+			}
+		}
+	}
+}
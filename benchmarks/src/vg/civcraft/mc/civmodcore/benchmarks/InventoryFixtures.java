@@ -0,0 +1,165 @@
+package vg.civcraft.mc.civmodcore.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.Material;
+import org.bukkit.craftbukkit.v1_8_R3.inventory.CraftInventoryCustom;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+/**
+ * Creates reproducible inventory contents resembling what's found in chests
+ * on a live server
+ *
+ */
+public final class InventoryFixtures {
+
+	/**
+	 * Kind of items an inventory is filled with
+	 */
+	public enum ContentShape {
+		/**
+		 * Raw materials without meta, some differing only in durability
+		 */
+		PLAIN,
+		/**
+		 * Damaged, enchanted tools and weapons
+		 */
+		ENCHANTED,
+		/**
+		 * Custom items identified by their lore, like compacted items
+		 */
+		LORED,
+		/**
+		 * All of the above
+		 */
+		MIXED
+	}
+
+	/**
+	 * Fraction of slots which are filled
+	 */
+	private static final double FILL_RATIO = 0.75;
+
+	private InventoryFixtures() {
+	}
+
+	/**
+	 * Creates inventory contents, the same arguments always result in the
+	 * same contents
+	 *
+	 * @param size
+	 *            Amount of slots
+	 * @param shape
+	 *            Kind of items to use
+	 * @param seed
+	 *            Seed for the random choice of items, amounts and slots
+	 * @return Contents with empty slots being null
+	 */
+	public static ItemStack[] createContents(int size, ContentShape shape,
+			long seed) {
+		Random rng = new Random(seed);
+		List<ItemStack> templates = createTemplates(shape);
+		ItemStack[] contents = new ItemStack[size];
+		for (int slot = 0; slot < size; slot++) {
+			if (rng.nextDouble() >= FILL_RATIO) {
+				continue;
+			}
+			ItemStack is = templates.get(rng.nextInt(templates.size())).clone();
+			is.setAmount(1 + rng.nextInt(is.getMaxStackSize()));
+			contents[slot] = is;
+		}
+		return contents;
+	}
+
+	/**
+	 * @return All non empty stacks of the given contents
+	 */
+	public static List<ItemStack> nonEmpty(ItemStack[] contents) {
+		List<ItemStack> stacks = new ArrayList<ItemStack>(contents.length);
+		for (ItemStack is : contents) {
+			if (is != null) {
+				stacks.add(is);
+			}
+		}
+		return stacks;
+	}
+
+	/**
+	 * Creates an inventory with a copy of the given contents
+	 */
+	public static Inventory createInventory(ItemStack[] contents) {
+		Inventory inventory = new CraftInventoryCustom(null, contents.length);
+		fill(inventory, contents);
+		return inventory;
+	}
+
+	/**
+	 * Replaces the content of the given inventory with a copy of the given
+	 * contents
+	 */
+	public static void fill(Inventory inventory, ItemStack[] contents) {
+		ItemStack[] copy = new ItemStack[contents.length];
+		for (int slot = 0; slot < contents.length; slot++) {
+			copy[slot] = contents[slot] == null ? null : contents[slot].clone();
+		}
+		inventory.setContents(copy);
+	}
+
+	private static List<ItemStack> createTemplates(ContentShape shape) {
+		List<ItemStack> templates = new ArrayList<ItemStack>();
+		if (shape == ContentShape.PLAIN || shape == ContentShape.MIXED) {
+			for (Material m : Arrays.asList(Material.STONE,
+					Material.COBBLESTONE, Material.IRON_INGOT,
+					Material.GOLD_INGOT, Material.DIAMOND, Material.COAL,
+					Material.REDSTONE)) {
+				templates.add(new ItemStack(m));
+			}
+			for (short durability = 0; durability < 4; durability++) {
+				templates.add(new ItemStack(Material.LOG, 1, durability));
+			}
+		}
+		if (shape == ContentShape.ENCHANTED || shape == ContentShape.MIXED) {
+			for (int level = 1; level <= 5; level++) {
+				templates.add(enchanted(Material.DIAMOND_SWORD, (short) 0,
+						Enchantment.DAMAGE_ALL, level));
+				templates.add(enchanted(Material.DIAMOND_PICKAXE,
+						(short) (level * 100), Enchantment.DIG_SPEED, level));
+			}
+			templates.add(enchanted(Material.IRON_CHESTPLATE, (short) 20,
+					Enchantment.DURABILITY, 3));
+		}
+		if (shape == ContentShape.LORED || shape == ContentShape.MIXED) {
+			for (Material m : Arrays.asList(Material.STONE, Material.IRON_INGOT,
+					Material.DIAMOND)) {
+				templates.add(lored(m, "Compacted Item"));
+			}
+			for (int i = 0; i < 4; i++) {
+				templates.add(lored(Material.PAPER, "Exchange note", "Id: " + i));
+			}
+		}
+		return templates;
+	}
+
+	private static ItemStack enchanted(Material m, short durability,
+			Enchantment enchant, int level) {
+		ItemStack is = new ItemStack(m, 1, durability);
+		ItemMeta meta = is.getItemMeta();
+		meta.addEnchant(enchant, level, true);
+		is.setItemMeta(meta);
+		return is;
+	}
+
+	private static ItemStack lored(Material m, String... lore) {
+		ItemStack is = new ItemStack(m);
+		ItemMeta meta = is.getItemMeta();
+		meta.setLore(Arrays.asList(lore));
+		is.setItemMeta(meta);
+		return is;
+	}
+}
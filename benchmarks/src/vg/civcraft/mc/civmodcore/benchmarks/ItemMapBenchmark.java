@@ -0,0 +1,105 @@
+package vg.civcraft.mc.civmodcore.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vg.civcraft.mc.civmodcore.benchmarks.InventoryFixtures.ContentShape;
+import vg.civcraft.mc.civmodcore.itemHandling.ItemMap;
+
+/**
+ * Benchmarks ItemMap operations, which don't involve inventories
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemMapBenchmark {
+
+	@Param({ "27", "54" })
+	public int slots;
+
+	@Param({ "PLAIN", "ENCHANTED", "LORED", "MIXED" })
+	public ContentShape shape;
+
+	private List<ItemStack> stacks;
+	private ItemMap map;
+	private ItemMap other;
+	private ItemStack probe;
+	private ItemStack wildcardProbe;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkServer.init();
+		stacks = InventoryFixtures.nonEmpty(InventoryFixtures.createContents(
+				slots, shape, 1L));
+		map = new ItemMap(stacks);
+		other = new ItemMap(InventoryFixtures.nonEmpty(InventoryFixtures
+				.createContents(slots, shape, 2L)));
+		probe = stacks.get(stacks.size() / 2).clone();
+		wildcardProbe = probe.clone();
+		wildcardProbe.setDurability((short) -1);
+	}
+
+	@Benchmark
+	public ItemMap add() {
+		ItemMap result = new ItemMap();
+		for (ItemStack is : stacks) {
+			result.addItemStack(is);
+		}
+		return result;
+	}
+
+	/**
+	 * Includes cloning the map, compare with {@link #copy()}
+	 */
+	@Benchmark
+	public ItemMap remove() {
+		ItemMap result = map.clone();
+		for (ItemStack is : stacks) {
+			result.removeItemStack(is);
+		}
+		return result;
+	}
+
+	/**
+	 * Includes cloning the map, compare with {@link #copy()}
+	 */
+	@Benchmark
+	public ItemMap merge() {
+		ItemMap result = map.clone();
+		result.merge(other);
+		return result;
+	}
+
+	@Benchmark
+	public ItemMap copy() {
+		return map.clone();
+	}
+
+	@Benchmark
+	public int getAmount() {
+		return map.getAmount(probe);
+	}
+
+	@Benchmark
+	public int getAmountWildcardDurability() {
+		return map.getAmount(wildcardProbe);
+	}
+}
@@ -1,4 +1,5 @@
 import vg.civcraft.mc.civmodcore.ACivMod;
+import vg.civcraft.mc.civmodcore.itemHandling.ItemMapBulkOperations;
 
 public class Dummy extends ACivMod{
 	protected String getPluginName(){
@@ -14,4 +15,11 @@ public class Dummy extends ACivMod{
 	{
 		//Don't want it to load commands/events
 	}
+	@Override
+	public void onDisable()
+	{
+		//Plugins using the shared pool depend on CivModCore, so they are
+		//disabled already
+		ItemMapBulkOperations.shutdown();
+	}
 }
@@ -14,6 +14,7 @@ import vg.civcraft.mc.civmodcore.annotations.*;
 import vg.civcraft.mc.civmodcore.command.CommandHandler;
 import vg.civcraft.mc.civmodcore.interfaces.ApiManager;
 import vg.civcraft.mc.civmodcore.inventorygui.ClickableInventoryListener;
+import vg.civcraft.mc.civmodcore.itemHandling.InventoryItemMapListener;
 import vg.civcraft.mc.civmodcore.itemHandling.NiceNames;
 import vg.civcraft.mc.civmodcore.util.ClassUtility;
 
@@ -125,6 +126,7 @@ public abstract class ACivMod extends JavaPlugin implements Listener{
     private void registerEvents() {
     	getServer().getPluginManager().registerEvents(this, this);
     	getServer().getPluginManager().registerEvents(new ClickableInventoryListener(), this);
+    	getServer().getPluginManager().registerEvents(new InventoryItemMapListener(this), this);
     }
     public void registerCommands() {
       ConsoleCommandSender console = getServer().getConsoleSender();
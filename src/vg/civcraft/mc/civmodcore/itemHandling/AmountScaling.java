@@ -0,0 +1,106 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Exact arithmetic on item amounts. All methods throw an ArithmeticException
+ * instead of silently overflowing
+ *
+ */
+final class AmountScaling {
+
+	private AmountScaling() {
+	}
+
+	/**
+	 * Multiplies the given amount with the fraction numerator / denominator
+	 * and rounds the result to a whole amount according to the given mode.
+	 * The product is computed exactly, even if it temporarily exceeds the
+	 * range of a long
+	 *
+	 * @throws ArithmeticException
+	 *             If the result doesn't fit into a long or the mode is
+	 *             {@link RoundingMode#UNNECESSARY} and the result isn't whole
+	 * @throws IllegalArgumentException
+	 *             If the denominator isn't positive
+	 */
+	static long scale(long amount, long numerator, long denominator,
+			RoundingMode mode) {
+		if (denominator <= 0) {
+			throw new IllegalArgumentException(
+					"Denominator must be positive, but was " + denominator);
+		}
+		long product = amount * numerator;
+		if (amount != 0
+				&& (product / amount != numerator || (amount == -1 && numerator == Long.MIN_VALUE))) {
+			// product overflowed, take the slow path
+			return BigDecimal.valueOf(amount)
+					.multiply(BigDecimal.valueOf(numerator))
+					.divide(BigDecimal.valueOf(denominator), 0, mode)
+					.longValueExact();
+		}
+		long quotient = product / denominator;
+		long remainder = product % denominator;
+		if (remainder == 0) {
+			return quotient;
+		}
+		int signum = product < 0 ? -1 : 1;
+		long absRemainder = Math.abs(remainder);
+		// compare the remainder against the other half of the denominator
+		// instead of doubling it, which could overflow
+		long halfComparison = absRemainder - (denominator - absRemainder);
+		boolean awayFromZero;
+		switch (mode) {
+		case UP:
+			awayFromZero = true;
+			break;
+		case DOWN:
+			awayFromZero = false;
+			break;
+		case CEILING:
+			awayFromZero = signum > 0;
+			break;
+		case FLOOR:
+			awayFromZero = signum < 0;
+			break;
+		case HALF_UP:
+			awayFromZero = halfComparison >= 0;
+			break;
+		case HALF_DOWN:
+			awayFromZero = halfComparison > 0;
+			break;
+		case HALF_EVEN:
+			awayFromZero = halfComparison > 0
+					|| (halfComparison == 0 && (quotient & 1) != 0);
+			break;
+		default:
+			throw new ArithmeticException("Rounding necessary");
+		}
+		return awayFromZero ? quotient + signum : quotient;
+	}
+
+	/**
+	 * @throws ArithmeticException
+	 *             If the sum overflows
+	 */
+	static long add(long a, long b) {
+		long sum = a + b;
+		if (((a ^ sum) & (b ^ sum)) < 0) {
+			throw new ArithmeticException("Item amount overflow");
+		}
+		return sum;
+	}
+
+	/**
+	 * @throws ArithmeticException
+	 *             If the given amount doesn't fit into an int
+	 */
+	static int toInt(long amount) {
+		if ((int) amount != amount) {
+			throw new ArithmeticException("Item amount " + amount
+					+ " exceeds the range of an int");
+		}
+		return (int) amount;
+	}
+}
@@ -0,0 +1,223 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Thread safe counterpart to ItemMap, which is meant to aggregate item counts
+ * from many worker threads at once, for example while scanning snapshotted
+ * chunks asynchronously. Adding to it never blocks, the amount of each item is
+ * kept in its own atomic counter and the total item amount is spread over
+ * several counters, so threads adding different items don't compete over a
+ * single field.
+ *
+ * This map only supports adding, everything else is done on a regular ItemMap
+ * obtained through {@link #snapshot()}. A snapshot is exact once all threads
+ * adding to this map are done and their completion was observed by the
+ * thread taking the snapshot, for example by joining them or by waiting on
+ * their futures. Snapshots taken while other threads are still adding contain
+ * the up to date amount of each single item, but not necessarily the same
+ * state for all items.
+ *
+ */
+public class ConcurrentItemMap {
+
+	/**
+	 * Distance between two used stripes of the total counter, so each of them
+	 * is placed in its own cache line
+	 */
+	private static final int STRIPE_PADDING = 8;
+
+	private final ConcurrentMap<ItemKey, AtomicInteger> items;
+	private final AtomicLongArray totalStripes;
+	private final int stripeMask;
+
+	public ConcurrentItemMap() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a new empty map
+	 *
+	 * @param concurrencyLevel
+	 *            Estimated amount of threads adding to this map at the same
+	 *            time
+	 */
+	public ConcurrentItemMap(int concurrencyLevel) {
+		int stripes = Integer.highestOneBit(Math.max(1, concurrencyLevel - 1)) << 1;
+		this.items = new ConcurrentHashMap<ItemKey, AtomicInteger>(16, 0.75f,
+				stripes);
+		this.totalStripes = new AtomicLongArray(stripes * STRIPE_PADDING);
+		this.stripeMask = stripes - 1;
+	}
+
+	/**
+	 * Adds the given ItemStack to this map
+	 *
+	 * @param input
+	 *            ItemStack to add
+	 */
+	public void addItemStack(ItemStack input) {
+		if (input != null) {
+			addKeyAmount(ItemKey.of(input), input.getAmount());
+		}
+	}
+
+	/**
+	 * Adds the given amount of the given ItemStack to this map, the amount of
+	 * the stack itself is ignored
+	 *
+	 * @param input
+	 *            ItemStack to add
+	 * @param amount
+	 *            Amount to add
+	 */
+	public void addItemAmount(ItemStack input, int amount) {
+		if (input != null) {
+			addKeyAmount(ItemKey.of(input), amount);
+		}
+	}
+
+	/**
+	 * Adds all the given ItemStacks to this map
+	 *
+	 * @param stacks
+	 *            ItemStacks to add
+	 */
+	public void addAll(Collection<ItemStack> stacks) {
+		for (ItemStack is : stacks) {
+			addItemStack(is);
+		}
+	}
+
+	/**
+	 * Adds the given amount of the item described by the given key
+	 *
+	 * @param key
+	 *            Key of the item to add
+	 * @param amount
+	 *            Amount to add
+	 */
+	public void addKeyAmount(ItemKey key, int amount) {
+		if (key == null) {
+			return;
+		}
+		AtomicInteger counter = items.get(key);
+		if (counter == null) {
+			AtomicInteger created = new AtomicInteger();
+			counter = items.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.addAndGet(amount);
+		totalStripes.addAndGet(stripeIndex(), amount);
+	}
+
+	/**
+	 * Adds the whole content of the given ItemMap to this map. The given map
+	 * must not be modified concurrently, but any amount of threads may merge
+	 * different maps into this one at the same time
+	 *
+	 * @param im
+	 *            ItemMap to merge
+	 */
+	public void merge(ItemMap im) {
+		im.forEachEntry(new ItemEntryVisitor() {
+			@Override
+			public boolean visit(ItemKey key, int amount) {
+				addKeyAmount(key, amount);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Adds the current content of another ConcurrentItemMap to this map
+	 *
+	 * @param other
+	 *            Map to merge
+	 */
+	public void merge(ConcurrentItemMap other) {
+		for (Entry<ItemKey, AtomicInteger> entry : other.items.entrySet()) {
+			addKeyAmount(entry.getKey(), entry.getValue().get());
+		}
+	}
+
+	/**
+	 * Gets the amount of the item described by the given key, no wild card
+	 * matching is done
+	 *
+	 * @param key
+	 *            Key of the item
+	 * @return Amount of the item in this map
+	 */
+	public int getExactAmount(ItemKey key) {
+		if (key == null) {
+			return 0;
+		}
+		AtomicInteger counter = items.get(key);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * @return How many items are in this map in total
+	 * @throws ArithmeticException
+	 *             If the total doesn't fit into an int, use
+	 *             {@link #getTotalItemAmountLong()} for maps aggregating
+	 *             large amounts
+	 */
+	public int getTotalItemAmount() {
+		return AmountScaling.toInt(getTotalItemAmountLong());
+	}
+
+	/**
+	 * @return How many items are in this map in total, which unlike the
+	 *         amount of a single item may exceed the range of an int
+	 */
+	public long getTotalItemAmountLong() {
+		long total = 0;
+		for (int i = 0; i < totalStripes.length(); i += STRIPE_PADDING) {
+			total += totalStripes.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @return How many different items are in this map
+	 */
+	public int getTotalUniqueItemAmount() {
+		return items.size();
+	}
+
+	/**
+	 * Copies the content of this map into a new, regular ItemMap, which can be
+	 * handed to code running on the main thread. See the class documentation
+	 * for when snapshots are exact
+	 *
+	 * @return New ItemMap with the content of this map
+	 */
+	public ItemMap snapshot() {
+		ItemMap result = new ItemMap();
+		for (Entry<ItemKey, AtomicInteger> entry : items.entrySet()) {
+			result.addKeyAmount(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	private int stripeIndex() {
+		return ((int) Thread.currentThread().getId() & stripeMask)
+				* STRIPE_PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
@@ -0,0 +1,158 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.math.RoundingMode;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * ItemMap whose content can't be changed after creation. This is intended for
+ * things like recipe inputs or setup costs, which are parsed once and only
+ * read afterwards. Consumers don't have to clone them defensively and
+ * instances can be shared between threads, as long as they are published
+ * safely, for example by assigning them to a final field.
+ *
+ * The hash, the total item amount and the amount of stacks needed to hold
+ * the content are computed once on creation. Comparing two ImmutableItemMaps
+ * with different content usually only compares their cached hashes.
+ *
+ * All methods which would modify the map throw an
+ * UnsupportedOperationException, {@link #clone()} returns a mutable copy.
+ *
+ */
+public final class ImmutableItemMap extends ItemMap {
+
+	private final int hash;
+	private final int totalItems;
+	private final int stackCount;
+
+	private ImmutableItemMap(ItemMap source) {
+		super(source);
+		this.hash = super.hashCode();
+		this.totalItems = super.getTotalItemAmount();
+		StackCountVisitor visitor = new StackCountVisitor();
+		forEachEntry(visitor);
+		this.stackCount = visitor.stacks;
+	}
+
+	/**
+	 * Creates an immutable copy of the given ItemMap. Copying only duplicates
+	 * the backing arrays of the map, none of its items are cloned
+	 *
+	 * @param source
+	 *            ItemMap to copy
+	 * @return Immutable copy of the given map or the given map itself if it
+	 *         already is immutable
+	 */
+	public static ImmutableItemMap copyOf(ItemMap source) {
+		if (source instanceof ImmutableItemMap) {
+			return (ImmutableItemMap) source;
+		}
+		return new ImmutableItemMap(source);
+	}
+
+	@Override
+	public int getStackCount() {
+		return stackCount;
+	}
+
+	@Override
+	public int getTotalItemAmount() {
+		return totalItems;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (o instanceof ImmutableItemMap && ((ImmutableItemMap) o).hash != hash) {
+			return false;
+		}
+		return super.equals(o);
+	}
+
+	@Override
+	public ImmutableItemMap toImmutable() {
+		return this;
+	}
+
+	@Override
+	public void update(Inventory inv) {
+		throw immutable();
+	}
+
+	@Override
+	public void addItemStack(ItemStack input) {
+		throw immutable();
+	}
+
+	@Override
+	public void addKeyAmount(ItemKey key, int amount) {
+		throw immutable();
+	}
+
+	@Override
+	public void removeItemStack(ItemStack input) {
+		throw immutable();
+	}
+
+	@Override
+	public void removeItemStackCompletly(ItemStack input) {
+		throw immutable();
+	}
+
+	@Override
+	public void addAll(Collection<ItemStack> stacks) {
+		throw immutable();
+	}
+
+	@Override
+	public void merge(ItemMap im) {
+		throw immutable();
+	}
+
+	@Override
+	public void addEntrySet(Set<Entry<ItemStack, Integer>> entries) {
+		throw immutable();
+	}
+
+	@Override
+	public void addItemAmount(ItemStack input, int amount) {
+		throw immutable();
+	}
+
+	@Override
+	public void multiplyContent(double multiplier) {
+		throw immutable();
+	}
+
+	@Override
+	public void multiplyContent(long numerator, long denominator,
+			RoundingMode mode) {
+		throw immutable();
+	}
+
+	private static UnsupportedOperationException immutable() {
+		return new UnsupportedOperationException(
+				"ImmutableItemMap can't be modified, clone it to get a mutable copy");
+	}
+
+	private static class StackCountVisitor implements ItemEntryVisitor {
+		private int stacks;
+
+		@Override
+		public boolean visit(ItemKey key, int amount) {
+			stacks += InventoryComparator.getStackCount(key, amount);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Compares ItemMaps against inventories. Each comparison reads the content of
+ * the inventory exactly once into a per thread scratch ItemMap, which is
+ * reused across calls, and then answers the question in a single pass over
+ * the ItemMap without creating any further submaps or stacks.
+ *
+ */
+public final class InventoryComparator {
+
+	private static final ThreadLocal<ItemMap> scratchPool = new ThreadLocal<ItemMap>() {
+		@Override
+		protected ItemMap initialValue() {
+			return new ItemMap();
+		}
+	};
+	private static final ThreadLocal<Boolean> scratchInUse = new ThreadLocal<Boolean>();
+
+	private InventoryComparator() {
+	}
+
+	/**
+	 * Checks whether the given ItemMap is completly contained in the given
+	 * inventory, see {@link ItemMap#isContainedIn(Inventory)}
+	 */
+	public static boolean isContainedIn(ItemMap required, Inventory i) {
+		final ItemMap available = acquire(i);
+		try {
+			return required.forEachEntry(new ItemEntryVisitor() {
+				@Override
+				public boolean visit(ItemKey key, int amount) {
+					return amount <= available.getAmount(key);
+				}
+			});
+		} finally {
+			release(available);
+		}
+	}
+
+	/**
+	 * Checks whether the given inventory contains exactly what's in the given
+	 * ItemMap, see {@link ItemMap#containedExactlyIn(Inventory)}
+	 */
+	public static boolean containedExactlyIn(ItemMap required, Inventory i) {
+		ItemStack[] contents = i.getContents();
+		for (ItemStack is : contents) {
+			if (is != null && !required.containsMaterial(is.getType())) {
+				return false;
+			}
+		}
+		final ItemMap available = acquire(contents);
+		try {
+			return required.forEachEntry(new ItemEntryVisitor() {
+				@Override
+				public boolean visit(ItemKey key, int amount) {
+					return amount == available.getAmount(key);
+				}
+			});
+		} finally {
+			release(available);
+		}
+	}
+
+	/**
+	 * Checks how often the given ItemMap is contained in the given inventory,
+	 * see {@link ItemMap#getMultiplesContainedIn(Inventory)}
+	 */
+	public static int getMultiplesContainedIn(ItemMap required, Inventory i) {
+		ItemMap available = acquire(i);
+		try {
+			MultiplesVisitor visitor = new MultiplesVisitor(available);
+			required.forEachEntry(visitor);
+			return visitor.multiples;
+		} finally {
+			release(available);
+		}
+	}
+
+	/**
+	 * Checks whether the given ItemMap would fit into the given inventory in
+	 * addition to what's already in there, see
+	 * {@link ItemMap#fitsIn(Inventory)}. Instead of creating the stacks needed
+	 * their amount is calculated directly from the amount of each item and its
+	 * maximum stack size
+	 */
+	public static boolean fitsIn(ItemMap toInsert, Inventory i) {
+		ItemMap available = acquire(i);
+		try {
+			MergedStackCountVisitor merged = new MergedStackCountVisitor(
+					available);
+			toInsert.forEachEntry(merged);
+			UnmatchedStackCountVisitor unmatched = new UnmatchedStackCountVisitor(
+					toInsert);
+			available.forEachEntry(unmatched);
+			return merged.stacks + unmatched.stacks <= i.getSize();
+		} finally {
+			release(available);
+		}
+	}
+
+	/**
+	 * @return How many stacks are needed to hold the given amount of the item
+	 *         described by the given key. Just like the stack representation
+	 *         of ItemMaps a negative amount is held by a single stack
+	 */
+	static int getStackCount(ItemKey key, int amount) {
+		if (amount <= 0) {
+			return amount == 0 ? 0 : 1;
+		}
+		int maxStackSize = key.getMaxStackSize();
+		return (amount + maxStackSize - 1) / maxStackSize;
+	}
+
+	private static ItemMap acquire(Inventory i) {
+		return acquire(i.getContents());
+	}
+
+	/**
+	 * Gets the scratch map of this thread and fills it with the given stacks.
+	 * If the scratch map is already in use further up the call stack, a new
+	 * map is used instead
+	 */
+	private static ItemMap acquire(ItemStack[] contents) {
+		ItemMap scratch;
+		if (scratchInUse.get() == null) {
+			scratch = scratchPool.get();
+			scratchInUse.set(Boolean.TRUE);
+		} else {
+			scratch = new ItemMap();
+		}
+		scratch.update(contents);
+		return scratch;
+	}
+
+	private static void release(ItemMap scratch) {
+		if (scratch == scratchPool.get()) {
+			scratch.clear();
+			scratchInUse.remove();
+		}
+	}
+
+	private static class MultiplesVisitor implements ItemEntryVisitor {
+		private final ItemMap available;
+		private int multiples = Integer.MAX_VALUE;
+
+		private MultiplesVisitor(ItemMap available) {
+			this.available = available;
+		}
+
+		@Override
+		public boolean visit(ItemKey key, int amount) {
+			multiples = Math.min(multiples, available.getAmount(key) / amount);
+			return true;
+		}
+	}
+
+	/**
+	 * Sums up the stacks needed for each entry of the visited map merged with
+	 * the amount of the same item in another map
+	 */
+	private static class MergedStackCountVisitor implements ItemEntryVisitor {
+		private final ItemMap other;
+		private int stacks;
+
+		private MergedStackCountVisitor(ItemMap other) {
+			this.other = other;
+		}
+
+		@Override
+		public boolean visit(ItemKey key, int amount) {
+			stacks += getStackCount(key, amount + other.getExactAmount(key));
+			return true;
+		}
+	}
+
+	/**
+	 * Sums up the stacks needed for each entry of the visited map, which isn't
+	 * contained in another map
+	 */
+	private static class UnmatchedStackCountVisitor implements
+			ItemEntryVisitor {
+		private final ItemMap other;
+		private int stacks;
+
+		private UnmatchedStackCountVisitor(ItemMap other) {
+			this.other = other;
+		}
+
+		@Override
+		public boolean visit(ItemKey key, int amount) {
+			if (!other.containsKey(key)) {
+				stacks += getStackCount(key, amount);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * ItemMap which is bound to a single inventory and kept in sync with it
+ * incrementally. The content of every slot is remembered, so when slots
+ * change only those slots have to be read again and the difference is
+ * applied to the map, instead of rebuilding it from scratch.
+ *
+ * Slots are marked as dirty either explicitly through
+ * {@link #markSlotDirty(int)} and {@link #markDirty()} or automatically by
+ * {@link InventoryItemMapListener} when players, hoppers or other blocks
+ * modify the inventory. Dirty slots are only read again once
+ * {@link #refresh()} is called, which should be done before reading from this
+ * map. Whenever a refresh changes the content of this map, its version is
+ * incremented, so callers can cache results derived from this map and skip
+ * recomputing them as long as the version stays the same.
+ *
+ * The content of this map is entirely determined by the inventory, all
+ * methods which would modify it directly throw an
+ * UnsupportedOperationException.
+ *
+ */
+public class InventoryItemMap extends ItemMap {
+
+	private static final Map<Inventory, List<TrackedReference>> trackedMaps = new HashMap<Inventory, List<TrackedReference>>();
+	private static final ReferenceQueue<InventoryItemMap> collectedMaps = new ReferenceQueue<InventoryItemMap>();
+
+	private final Inventory inventory;
+	private final ItemKey[] slotKeys;
+	private final int[] slotAmounts;
+	private final BitSet dirtySlots;
+	private long version;
+
+	/**
+	 * Creates a new ItemMap which mirrors the given inventory. The map is
+	 * registered to receive change notifications from
+	 * {@link InventoryItemMapListener} for as long as it's referenced. Once
+	 * it was garbage collected, it's unregistered the next time any inventory
+	 * change is reported, so the inventory isn't kept reachable by it
+	 *
+	 * @param inventory
+	 *            Inventory to mirror
+	 */
+	public InventoryItemMap(Inventory inventory) {
+		super();
+		this.inventory = inventory;
+		this.slotKeys = new ItemKey[inventory.getSize()];
+		this.slotAmounts = new int[inventory.getSize()];
+		this.dirtySlots = new BitSet(inventory.getSize());
+		this.version = 0;
+		markDirty();
+		refresh();
+		track(this);
+	}
+
+	/**
+	 * @return Inventory this map mirrors
+	 */
+	public Inventory getInventory() {
+		return inventory;
+	}
+
+	/**
+	 * @return Counter which is incremented every time the content of this map
+	 *         changes
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Marks a single slot as changed, so it will be read again on the next
+	 * refresh
+	 *
+	 * @param slot
+	 *            Index of the slot in the inventory
+	 */
+	public void markSlotDirty(int slot) {
+		if (slot >= 0 && slot < slotKeys.length) {
+			dirtySlots.set(slot);
+		}
+	}
+
+	/**
+	 * Marks all slots as changed, so the whole inventory will be read again on
+	 * the next refresh
+	 */
+	public void markDirty() {
+		dirtySlots.set(0, slotKeys.length);
+	}
+
+	/**
+	 * @return Whether any slots were marked as changed since the last refresh
+	 */
+	public boolean isDirty() {
+		return !dirtySlots.isEmpty();
+	}
+
+	/**
+	 * Reads all slots marked as dirty again and applies their changes to this
+	 * map
+	 *
+	 * @return True if the content of this map changed, false if not
+	 */
+	public boolean refresh() {
+		if (dirtySlots.isEmpty()) {
+			return false;
+		}
+		boolean changed = false;
+		for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots
+				.nextSetBit(slot + 1)) {
+			ItemStack is = inventory.getItem(slot);
+			ItemKey key = null;
+			int amount = 0;
+			if (is != null) {
+				key = ItemKey.of(is);
+				amount = key == null ? 0 : is.getAmount();
+			}
+			ItemKey oldKey = slotKeys[slot];
+			int oldAmount = slotAmounts[slot];
+			if (oldAmount == amount
+					&& (oldKey == key || (oldKey != null && oldKey.equals(key)))) {
+				continue;
+			}
+			adjustAmount(oldKey, -oldAmount);
+			adjustAmount(key, amount);
+			slotKeys[slot] = key;
+			slotAmounts[slot] = amount;
+			changed = true;
+		}
+		dirtySlots.clear();
+		if (changed) {
+			version++;
+		}
+		return changed;
+	}
+
+	/**
+	 * Rereads the whole inventory if it's the one this map is bound to
+	 *
+	 * @throws UnsupportedOperationException
+	 *             If the given inventory isn't the one this map is bound to
+	 */
+	@Override
+	public void update(Inventory inv) {
+		if (!inventory.equals(inv)) {
+			throw new UnsupportedOperationException(
+					"InventoryItemMap can only mirror the inventory it was created for");
+		}
+		markDirty();
+		refresh();
+	}
+
+	@Override
+	public void addItemStack(ItemStack input) {
+		throw immutable();
+	}
+
+	@Override
+	public void addKeyAmount(ItemKey key, int amount) {
+		throw immutable();
+	}
+
+	@Override
+	public void removeItemStack(ItemStack input) {
+		throw immutable();
+	}
+
+	@Override
+	public void removeItemStackCompletly(ItemStack input) {
+		throw immutable();
+	}
+
+	@Override
+	public void addAll(Collection<ItemStack> stacks) {
+		throw immutable();
+	}
+
+	@Override
+	public void merge(ItemMap im) {
+		throw immutable();
+	}
+
+	@Override
+	public void addEntrySet(Set<Entry<ItemStack, Integer>> entries) {
+		throw immutable();
+	}
+
+	@Override
+	public void addItemAmount(ItemStack input, int amount) {
+		throw immutable();
+	}
+
+	@Override
+	public void multiplyContent(double multiplier) {
+		throw immutable();
+	}
+
+	@Override
+	public void multiplyContent(long numerator, long denominator,
+			RoundingMode mode) {
+		throw immutable();
+	}
+
+	private static UnsupportedOperationException immutable() {
+		return new UnsupportedOperationException(
+				"The content of an InventoryItemMap is determined by its inventory");
+	}
+
+	private static void track(InventoryItemMap map) {
+		expungeCollected();
+		List<TrackedReference> maps = trackedMaps.get(map.inventory);
+		if (maps == null) {
+			maps = new ArrayList<TrackedReference>(1);
+			trackedMaps.put(map.inventory, maps);
+		}
+		maps.add(new TrackedReference(map));
+	}
+
+	/**
+	 * Unregisters all maps which were garbage collected since the last call,
+	 * so inventories aren't kept reachable once nothing mirrors them anymore
+	 */
+	private static void expungeCollected() {
+		Reference<? extends InventoryItemMap> ref;
+		while ((ref = collectedMaps.poll()) != null) {
+			Inventory inventory = ((TrackedReference) ref).inventory;
+			List<TrackedReference> maps = trackedMaps.get(inventory);
+			if (maps != null && maps.remove(ref) && maps.isEmpty()) {
+				trackedMaps.remove(inventory);
+			}
+		}
+	}
+
+	/**
+	 * @return Whether any live map mirrors the given inventory
+	 */
+	static boolean isTracked(Inventory inventory) {
+		expungeCollected();
+		return trackedMaps.containsKey(inventory);
+	}
+
+	/**
+	 * Marks the given slot as dirty in all maps mirroring the given inventory
+	 */
+	static void slotChanged(Inventory inventory, int slot) {
+		expungeCollected();
+		List<TrackedReference> maps = trackedMaps.get(inventory);
+		if (maps == null) {
+			return;
+		}
+		for (TrackedReference ref : maps) {
+			InventoryItemMap map = ref.get();
+			if (map != null) {
+				map.markSlotDirty(slot);
+			}
+		}
+	}
+
+	/**
+	 * Marks all slots as dirty in all maps mirroring the given inventory
+	 */
+	static void inventoryChanged(Inventory inventory) {
+		expungeCollected();
+		List<TrackedReference> maps = trackedMaps.get(inventory);
+		if (maps == null) {
+			return;
+		}
+		for (TrackedReference ref : maps) {
+			InventoryItemMap map = ref.get();
+			if (map != null) {
+				map.markDirty();
+			}
+		}
+	}
+
+	/**
+	 * Weak reference to a tracked map, which remembers the inventory it's
+	 * registered under so it can be unregistered once the map was collected
+	 */
+	private static class TrackedReference extends
+			WeakReference<InventoryItemMap> {
+		private final Inventory inventory;
+
+		private TrackedReference(InventoryItemMap map) {
+			super(map, collectedMaps);
+			this.inventory = map.inventory;
+		}
+	}
+}
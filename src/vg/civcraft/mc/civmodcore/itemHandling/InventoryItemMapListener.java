@@ -0,0 +1,169 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.inventory.InventoryMoveItemEvent;
+import org.bukkit.event.inventory.InventoryPickupItemEvent;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryView;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Marks the slots of InventoryItemMaps as dirty whenever their inventory is
+ * modified by players, hoppers or other blocks. Inventory events are called
+ * before the inventory is actually modified, so a map refreshed while the
+ * event is still being handled would read the old content and forget that
+ * the slot changed. Because of that slots are marked right away and once
+ * more on the next tick, after the modification was applied. This is
+ * registered automatically for plugins extending ACivMod, otherwise register
+ * it as a listener in your plugin, DONT DO BOTH
+ *
+ */
+public class InventoryItemMapListener implements Listener {
+
+	private final Plugin plugin;
+	private final Map<Inventory, BitSet> changedSlots;
+	private final Set<Inventory> changedInventories;
+	private boolean flushScheduled;
+
+	/**
+	 * @param plugin
+	 *            Plugin used to schedule marking changed slots again on the
+	 *            next tick
+	 */
+	public InventoryItemMapListener(Plugin plugin) {
+		this.plugin = plugin;
+		this.changedSlots = new HashMap<Inventory, BitSet>();
+		this.changedInventories = new HashSet<Inventory>();
+		this.flushScheduled = false;
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void inventoryClick(InventoryClickEvent e) {
+		InventoryView view = e.getView();
+		switch (e.getAction()) {
+		case NOTHING:
+			return;
+		case PICKUP_ALL:
+		case PICKUP_SOME:
+		case PICKUP_HALF:
+		case PICKUP_ONE:
+		case PLACE_ALL:
+		case PLACE_SOME:
+		case PLACE_ONE:
+		case SWAP_WITH_CURSOR:
+		case DROP_ALL_SLOT:
+		case DROP_ONE_SLOT:
+			// only the clicked slot is modified
+			rawSlotChanged(view, e.getRawSlot());
+			return;
+		default:
+			// shift clicks, hotbar swaps and collecting to the cursor can touch
+			// any slot of the view
+			inventoryChanged(view.getTopInventory());
+			inventoryChanged(view.getBottomInventory());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void inventoryDrag(InventoryDragEvent e) {
+		for (int rawSlot : e.getRawSlots()) {
+			rawSlotChanged(e.getView(), rawSlot);
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void inventoryMoveItem(InventoryMoveItemEvent e) {
+		inventoryChanged(e.getSource());
+		inventoryChanged(e.getDestination());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void inventoryPickupItem(InventoryPickupItemEvent e) {
+		inventoryChanged(e.getInventory());
+	}
+
+	private void rawSlotChanged(InventoryView view, int rawSlot) {
+		if (rawSlot < 0) {
+			// clicks outside of the inventory window
+			return;
+		}
+		Inventory top = view.getTopInventory();
+		if (rawSlot < top.getSize()) {
+			slotChanged(top, rawSlot);
+		} else {
+			slotChanged(view.getBottomInventory(), view.convertSlot(rawSlot));
+		}
+	}
+
+	private void slotChanged(Inventory inventory, int slot) {
+		if (!InventoryItemMap.isTracked(inventory)) {
+			return;
+		}
+		InventoryItemMap.slotChanged(inventory, slot);
+		if (changedInventories.contains(inventory)) {
+			return;
+		}
+		BitSet slots = changedSlots.get(inventory);
+		if (slots == null) {
+			slots = new BitSet();
+			changedSlots.put(inventory, slots);
+		}
+		slots.set(slot);
+		scheduleFlush();
+	}
+
+	private void inventoryChanged(Inventory inventory) {
+		if (!InventoryItemMap.isTracked(inventory)) {
+			return;
+		}
+		InventoryItemMap.inventoryChanged(inventory);
+		changedSlots.remove(inventory);
+		changedInventories.add(inventory);
+		scheduleFlush();
+	}
+
+	/**
+	 * Schedules marking all slots changed during this tick again on the next
+	 * tick. All changes of a tick are collected, so a busy hopper chain only
+	 * causes a single task
+	 */
+	private void scheduleFlush() {
+		if (flushScheduled) {
+			return;
+		}
+		flushScheduled = true;
+		plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private void flush() {
+		flushScheduled = false;
+		for (Entry<Inventory, BitSet> entry : changedSlots.entrySet()) {
+			BitSet slots = entry.getValue();
+			for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots
+					.nextSetBit(slot + 1)) {
+				InventoryItemMap.slotChanged(entry.getKey(), slot);
+			}
+		}
+		for (Inventory inventory : changedInventories) {
+			InventoryItemMap.inventoryChanged(inventory);
+		}
+		changedSlots.clear();
+		changedInventories.clear();
+	}
+}
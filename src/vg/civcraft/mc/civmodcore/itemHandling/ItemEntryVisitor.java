@@ -0,0 +1,21 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+/**
+ * Callback to iterate over the content of an ItemMap without copying it, see
+ * {@link ItemMap#forEachEntry(ItemEntryVisitor)}. Visitors must not modify the
+ * ItemMap they are visiting
+ *
+ */
+public interface ItemEntryVisitor {
+
+	/**
+	 * Called once for every entry in the visited ItemMap
+	 * 
+	 * @param key
+	 *            Key of the item
+	 * @param amount
+	 *            Amount of the item stored in the map
+	 * @return True to continue with the next entry, false to stop iterating
+	 */
+	public boolean visit(ItemKey key, int amount);
+}
@@ -0,0 +1,220 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.craftbukkit.v1_8_R3.inventory.CraftItemStack;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.inventory.meta.Repairable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Immutable, canonical identity of an item regardless of its amount. Two
+ * ItemStacks which only differ in their amount or repair cost map to the same
+ * ItemKey. Keys are interned in a global weak pool, so identical items share
+ * a single instance for as long as anything references it, and the hash of
+ * the item meta is computed exactly once when the key is created.
+ *
+ * The meta held by a key is never handed out directly, every accessor which
+ * exposes it returns a copy, so keys can be shared freely between ItemMaps
+ * and threads.
+ *
+ */
+public final class ItemKey {
+	private static final Interner<ItemKey> pool = Interners.newWeakInterner();
+	private static final Boolean[] holdable = new Boolean[Material.values().length];
+
+	private final Material material;
+	private final short durability;
+	private final ItemMeta meta;
+	private final int hash;
+	private final Map<Enchantment, Integer> enchants;
+	private final List<String> lore;
+
+	private ItemKey(Material material, short durability, ItemMeta meta) {
+		this.material = material;
+		this.durability = durability;
+		this.meta = meta;
+		if (meta != null) {
+			this.enchants = meta.hasEnchants() ? ImmutableMap.copyOf(meta
+					.getEnchants()) : Collections.<Enchantment, Integer> emptyMap();
+			this.lore = meta.hasLore() ? ImmutableList.copyOf(meta.getLore())
+					: null;
+		} else {
+			this.enchants = Collections.<Enchantment, Integer> emptyMap();
+			this.lore = null;
+		}
+		int h = 31 + material.ordinal();
+		h = 31 * h + durability;
+		h = 31 * h + (meta == null ? 0 : meta.hashCode());
+		this.hash = h;
+	}
+
+	/**
+	 * Gets the canonical key for the given ItemStack. The amount of the stack
+	 * is ignored and its repair cost is reset, so anvil usage doesn't create
+	 * separate entries for otherwise identical items
+	 *
+	 * @param is
+	 *            ItemStack to create the key for
+	 * @return Interned key describing the given stack or null if the stack is
+	 *         null or its material can't be held in inventories
+	 */
+	public static ItemKey of(ItemStack is) {
+		if (is == null) {
+			return null;
+		}
+		Material m = is.getType();
+		if (!isHoldable(m)) {
+			Bukkit.getServer()
+					.getLogger()
+					.log(Level.SEVERE,
+							"Attempted to create item key of "
+									+ is.toString()
+									+ ", but couldn't because this item can't be held in inventories since Minecraft 1.8");
+			return null;
+		}
+		ItemMeta meta = null;
+		if (is.hasItemMeta()) {
+			meta = is.getItemMeta();
+			if (meta instanceof Repairable
+					&& ((Repairable) meta).hasRepairCost()) {
+				((Repairable) meta).setRepairCost(0);
+				if (Bukkit.getItemFactory().equals(meta, null)) {
+					// repair cost was the only thing in there
+					meta = null;
+				}
+			}
+		}
+		return pool.intern(new ItemKey(m, is.getDurability(), meta));
+	}
+
+	/**
+	 * Checks whether items of the given material can exist as ItemStack in an
+	 * inventory. The result is computed once per material and cached
+	 * afterwards
+	 */
+	private static boolean isHoldable(Material m) {
+		Boolean cached = holdable[m.ordinal()];
+		if (cached == null) {
+			cached = CraftItemStack.asNMSCopy(new ItemStack(m)) != null;
+			holdable[m.ordinal()] = cached;
+		}
+		return cached;
+	}
+
+	/**
+	 * @return Material of the item described by this key
+	 */
+	public Material getMaterial() {
+		return material;
+	}
+
+	/**
+	 * @return Durability of the item described by this key
+	 */
+	public short getDurability() {
+		return durability;
+	}
+
+	/**
+	 * @return Maximum stack size for the item described by this key
+	 */
+	public int getMaxStackSize() {
+		return material.getMaxStackSize();
+	}
+
+	/**
+	 * @return Whether the item described by this key has any non default meta
+	 */
+	public boolean hasMeta() {
+		return meta != null;
+	}
+
+	/**
+	 * @return Copy of the meta of the item described by this key or null if
+	 *         it has no non default meta
+	 */
+	public ItemMeta getMeta() {
+		return meta == null ? null : meta.clone();
+	}
+
+	/**
+	 * @return Unmodifiable view of the enchants on the item described by this
+	 *         key, never null
+	 */
+	public Map<Enchantment, Integer> getEnchantments() {
+		return enchants;
+	}
+
+	/**
+	 * @return Unmodifiable view of the lore of the item described by this key
+	 *         or null if it has no lore
+	 */
+	public List<String> getLore() {
+		return lore;
+	}
+
+	/**
+	 * @return New ItemStack with an amount of one, which is described by this
+	 *         key
+	 */
+	public ItemStack toItemStack() {
+		return toItemStack(1);
+	}
+
+	/**
+	 * Creates a new ItemStack described by this key
+	 *
+	 * @param amount
+	 *            Amount to set on the created stack
+	 * @return New ItemStack described by this key with the given amount
+	 */
+	public ItemStack toItemStack(int amount) {
+		ItemStack is = new ItemStack(material, amount, durability);
+		if (meta != null) {
+			is.setItemMeta(meta);
+		}
+		return is;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof ItemKey)) {
+			return false;
+		}
+		ItemKey other = (ItemKey) o;
+		if (other.hash != hash || other.material != material
+				|| other.durability != durability) {
+			return false;
+		}
+		if (meta == null || other.meta == null) {
+			return meta == other.meta;
+		}
+		return Bukkit.getItemFactory().equals(meta, other.meta);
+	}
+
+	@Override
+	public String toString() {
+		return "ItemKey{" + material + ":" + durability
+				+ (meta == null ? "" : ", " + meta) + "}";
+	}
+}
@@ -1,22 +1,27 @@
 package vg.civcraft.mc.civmodcore.itemHandling;
 
+import java.math.RoundingMode;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.logging.Level;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
-import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
-import org.bukkit.craftbukkit.v1_8_R3.inventory.CraftItemStack;
 import org.bukkit.enchantments.Enchantment;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 
+import vg.civcraft.mc.civmodcore.util.ObjectIntHashMap;
+
 /**
  * Allows the storage and comparison of itemstacks while ignoring their maximum
  * possible stack sizes. This offers various tools to compare inventories, to
@@ -29,20 +34,44 @@ import org.bukkit.inventory.ItemStack;
  * durability it will count as any given durability. When working with multiple
  * ItemMaps this will only work if all methods are executed on the instance
  * containing items with a durability of -1.
+ * 
+ * Internally items are keyed by their interned {@link ItemKey}, so adding or
+ * looking up stacks never has to clone or serialize them, and amounts are
+ * kept as primitive ints in an open addressing map. Additionally all keys are
+ * indexed by their material, so lookups by material only have to look at the
+ * entries of that material
  *
  */
 public class ItemMap {
-	private HashMap<ItemStack, Integer> items;
+	private final ObjectIntHashMap<ItemKey> items;
 	private int totalItems;
+	private final EnumMap<Material, List<ItemKey>> materialIndex = new EnumMap<Material, List<ItemKey>>(
+			Material.class);
 
 	/**
 	 * Empty constructor to create empty item map
 	 */
 	public ItemMap() {
-		items = new HashMap<ItemStack, Integer>();
+		items = new ObjectIntHashMap<ItemKey>();
 		totalItems = 0;
 	}
 
+	/**
+	 * Copy constructor, which directly copies the content of the given map
+	 * 
+	 * @param other
+	 *            ItemMap to copy
+	 */
+	protected ItemMap(ItemMap other) {
+		items = new ObjectIntHashMap<ItemKey>(other.items);
+		for (Entry<Material, List<ItemKey>> entry : other.materialIndex
+				.entrySet()) {
+			materialIndex.put(entry.getKey(),
+					new ArrayList<ItemKey>(entry.getValue()));
+		}
+		totalItems = other.totalItems;
+	}
+
 	/**
 	 * Constructor to create an item map based on the content of an inventory.
 	 * The ItemMap will not be in sync with the inventory, it will only update
@@ -52,6 +81,7 @@ public class ItemMap {
 	 *            Inventory to base the item map on
 	 */
 	public ItemMap(Inventory inv) {
+		items = new ObjectIntHashMap<ItemKey>(inv.getSize());
 		totalItems = 0;
 		update(inv);
 	}
@@ -63,7 +93,7 @@ public class ItemMap {
 	 *            ItemStack to start with
 	 */
 	public ItemMap(ItemStack is) {
-		items = new HashMap<ItemStack, Integer>();
+		items = new ObjectIntHashMap<ItemKey>();
 		totalItems = 0;
 		addItemStack(is);
 	}
@@ -75,7 +105,7 @@ public class ItemMap {
 	 *            Stacks to add to the map
 	 */
 	public ItemMap(Collection<ItemStack> stacks) {
-		items = new HashMap<ItemStack, Integer>();
+		items = new ObjectIntHashMap<ItemKey>();
 		addAll(stacks);
 	}
 
@@ -91,18 +121,39 @@ public class ItemMap {
 	 */
 	public void addItemStack(ItemStack input) {
 		if (input != null) {
-			ItemStack is = createMapConformCopy(input);
-			if (is == null) {
-				return;
-			}
-			Integer i;
-			if ((i = items.get(is)) != null) {
-				items.put(is, i + input.getAmount());
-			} else {
-				items.put(is, input.getAmount());
+			add(ItemKey.of(input), input.getAmount());
+		}
+	}
+
+	/**
+	 * Adds the given amount of the item described by the given key to this map
+	 * 
+	 * @param key
+	 *            Key of the item to add
+	 * @param amount
+	 *            Amount to add
+	 */
+	public void addKeyAmount(ItemKey key, int amount) {
+		add(key, amount);
+	}
+
+	private void add(ItemKey key, int amount) {
+		if (key == null) {
+			return;
+		}
+		int slot = items.indexOf(key);
+		if (slot >= 0) {
+			items.setValueAt(slot, items.valueAt(slot) + amount);
+		} else {
+			items.put(key, amount);
+			List<ItemKey> bucket = materialIndex.get(key.getMaterial());
+			if (bucket == null) {
+				bucket = new ArrayList<ItemKey>(4);
+				materialIndex.put(key.getMaterial(), bucket);
 			}
-			totalItems += input.getAmount();
+			bucket.add(key);
 		}
+		totalItems += amount;
 	}
 
 	/**
@@ -115,17 +166,19 @@ public class ItemMap {
 	 *            ItemStack to remove
 	 */
 	public void removeItemStack(ItemStack input) {
-		ItemStack is = createMapConformCopy(input);
-		if (is == null) {
+		ItemKey key = ItemKey.of(input);
+		if (key == null) {
 			return;
 		}
-		Integer value = items.get(is);
-		if (value != null) {
+		int slot = items.indexOf(key);
+		if (slot >= 0) {
+			int value = items.valueAt(slot);
 			int newVal = value - input.getAmount();
 			if (newVal > 0) {
-				items.put(is, newVal);
+				items.setValueAt(slot, newVal);
+				totalItems -= input.getAmount();
 			} else {
-				items.remove(is);
+				removeKey(key);
 			}
 		}
 	}
@@ -138,18 +191,84 @@ public class ItemMap {
 	 *            ItemStack to remove
 	 */
 	public void removeItemStackCompletly(ItemStack input) {
-		ItemStack is = createMapConformCopy(input);
-		if (is != null) {
-			items.remove(is);
+		ItemKey key = ItemKey.of(input);
+		if (key != null) {
+			removeKey(key);
 		}
 	}
 
-	public int hashCode() {
-		int res = 0;
-		for (Entry<ItemStack, Integer> entry : items.entrySet()) {
-			res += entry.hashCode();
+	/**
+	 * Adds the given delta to the amount of the given key and drops the key
+	 * completly if its amount reaches 0. Unlike the public mutators this is
+	 * never overridden, so subclasses can use it to maintain their content
+	 * 
+	 * @param key
+	 *            Key to modify
+	 * @param delta
+	 *            Amount to add, may be negative
+	 */
+	void adjustAmount(ItemKey key, int delta) {
+		if (key == null || delta == 0) {
+			return;
+		}
+		add(key, delta);
+		if (items.get(key) == 0) {
+			removeKey(key);
 		}
-		return res;
+	}
+
+	/**
+	 * Removes the given key and its amount completly from this map
+	 */
+	private void removeKey(ItemKey key) {
+		int slot = items.indexOf(key);
+		if (slot < 0) {
+			return;
+		}
+		totalItems -= items.valueAt(slot);
+		items.remove(key);
+		List<ItemKey> bucket = materialIndex.get(key.getMaterial());
+		bucket.remove(key);
+		if (bucket.isEmpty()) {
+			materialIndex.remove(key.getMaterial());
+		}
+	}
+
+	/**
+	 * @param m
+	 *            Material to look up
+	 * @return Unmodifiable view of all keys in this map with the given
+	 *         material
+	 */
+	private List<ItemKey> getKeysByMaterial(Material m) {
+		List<ItemKey> bucket = materialIndex.get(m);
+		if (bucket == null) {
+			return Collections.emptyList();
+		}
+		return bucket;
+	}
+
+	/**
+	 * @param m
+	 *            Material to look up
+	 * @return Whether this map contains any entry with the given material
+	 */
+	boolean containsMaterial(Material m) {
+		return materialIndex.containsKey(m);
+	}
+
+	/**
+	 * @param key
+	 *            Key to look up
+	 * @return Whether this map contains an entry for the given key, even if
+	 *         its amount is 0
+	 */
+	boolean containsKey(ItemKey key) {
+		return items.containsKey(key);
+	}
+
+	public int hashCode() {
+		return items.hashCode();
 	}
 
 	/**
@@ -173,22 +292,55 @@ public class ItemMap {
 	 *            ItemMap to merge
 	 */
 	public void merge(ItemMap im) {
-		for (Entry<ItemStack, Integer> entry : im.getEntrySet()) {
-			addItemAmount(entry.getKey(), entry.getValue());
-		}
+		im.forEachEntry(new ItemEntryVisitor() {
+			@Override
+			public boolean visit(ItemKey key, int amount) {
+				add(key, amount);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Merges all the given item maps into a new instance. Large collections
+	 * are merged in parallel, see {@link ItemMapBulkOperations}
+	 *
+	 * @param maps
+	 *            ItemMaps to merge
+	 * @return New ItemMap containing the content of all given maps
+	 */
+	public static ItemMap mergeAll(Collection<? extends ItemMap> maps) {
+		return ItemMapBulkOperations.mergeAll(maps);
 	}
 
 	public void update(Inventory inv) {
-		items = new HashMap<ItemStack, Integer>();
-		totalItems = 0;
-		for (int i = 0; i < inv.getSize(); i++) {
-			ItemStack is = inv.getItem(i);
+		update(inv.getContents());
+	}
+
+	/**
+	 * Replaces the content of this map with the given stacks
+	 * 
+	 * @param contents
+	 *            Stacks to fill this map with, may contain null
+	 */
+	void update(ItemStack[] contents) {
+		clear();
+		for (ItemStack is : contents) {
 			if (is != null) {
-				addItemStack(is);
+				add(ItemKey.of(is), is.getAmount());
 			}
 		}
 	}
 
+	/**
+	 * Removes everything from this map, but keeps the allocated capacity
+	 */
+	void clear() {
+		items.clear();
+		materialIndex.clear();
+		totalItems = 0;
+	}
+
 	public void addEntrySet(Set<Entry<ItemStack, Integer>> entries) {
 		for (Entry<ItemStack, Integer> entry : entries) {
 			addItemAmount(entry.getKey(), entry.getValue());
@@ -204,12 +356,9 @@ public class ItemMap {
 	 *            Amount associated with the given ItemStack
 	 */
 	public void addItemAmount(ItemStack input, int amount) {
-		ItemStack copy = createMapConformCopy(input);
-		if (copy == null) {
-			return;
+		if (input != null) {
+			add(ItemKey.of(input), amount);
 		}
-		copy.setAmount(amount);
-		addItemStack(copy);
 	}
 
 	/**
@@ -223,10 +372,8 @@ public class ItemMap {
 	 */
 	public ItemMap getStacksByMaterial(Material m) {
 		ItemMap result = new ItemMap();
-		for (ItemStack is : items.keySet()) {
-			if (is.getType() == m) {
-				result.addItemAmount(is.clone(), items.get(is));
-			}
+		for (ItemKey key : getKeysByMaterial(m)) {
+			result.addKeyAmount(key, items.get(key));
 		}
 		return result;
 	}
@@ -248,9 +395,9 @@ public class ItemMap {
 	 */
 	public ItemMap getStacksByMaterialDurability(Material m, int durability) {
 		ItemMap result = new ItemMap();
-		for (ItemStack is : items.keySet()) {
-			if (is.getType() == m && is.getDurability() == durability) {
-				result.addItemAmount(is.clone(), items.get(is));
+		for (ItemKey key : getKeysByMaterial(m)) {
+			if (key.getDurability() == durability) {
+				result.addKeyAmount(key, items.get(key));
 			}
 		}
 		return result;
@@ -277,11 +424,10 @@ public class ItemMap {
 	public ItemMap getStacksByMaterialDurabilityEnchants(Material m,
 			int durability, Map<Enchantment, Integer> enchants) {
 		ItemMap result = new ItemMap();
-		for (ItemStack is : items.keySet()) {
-			if (is.getType() == m && is.getDurability() == durability
-					&& is.getItemMeta() != null
-					&& is.getItemMeta().getEnchants().equals(enchants)) {
-				result.addItemAmount(is.clone(), items.get(is));
+		for (ItemKey key : getKeysByMaterial(m)) {
+			if (key.getDurability() == durability
+					&& key.getEnchantments().equals(enchants)) {
+				result.addKeyAmount(key, items.get(key));
 			}
 		}
 		return result;
@@ -309,10 +455,13 @@ public class ItemMap {
 	 */
 	public ItemMap getStacksByLore(List<String> lore) {
 		ItemMap result = new ItemMap();
-		for (ItemStack is : items.keySet()) {
-			if (is.getItemMeta() != null
-					&& is.getItemMeta().getLore().equals(lore)) {
-				result.addItemAmount(is.clone(), items.get(is));
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			ItemKey key = items.keyAt(slot);
+			if (key == null) {
+				continue;
+			}
+			if (key.getLore() != null && key.getLore().equals(lore)) {
+				result.addKeyAmount(key, items.valueAt(slot));
 			}
 		}
 		return result;
@@ -328,22 +477,105 @@ public class ItemMap {
 	 * @return amount of items like the given stack in this map
 	 */
 	public int getAmount(ItemStack is) {
-		ItemMap matSubMap = getStacksByMaterial(is);
+		return getAmount(ItemMatcher.of(is));
+	}
+
+	/**
+	 * Gets how many items matching the given key are in this map, following
+	 * the same rules as {@link #getAmount(ItemStack)}
+	 * 
+	 * @param key
+	 *            Key of the item to search for
+	 * @return amount of items matching the given key in this map
+	 */
+	public int getAmount(ItemKey key) {
+		return getAmount(ItemMatcher.of(key));
+	}
+
+	/**
+	 * Gets how many items matched by the given matcher are in this map. Only
+	 * entries with the material of the matcher are tested
+	 * 
+	 * @param matcher
+	 *            Matcher to test entries with
+	 * @return amount of matching items in this map
+	 */
+	public int getAmount(ItemMatcher matcher) {
 		int amount = 0;
-		for (Entry<ItemStack, Integer> entry : matSubMap.getEntrySet()) {
-			ItemStack current = entry.getKey();
-			if ((is.getDurability() == -1 || is.getDurability() == current
-					.getDurability())
-					&& is.getEnchantments().equals(current.getEnchantments())
-					&& (current.getItemMeta().getLore() == null || current
-							.getItemMeta().getLore()
-							.equals(is.getItemMeta().getLore()))) {
-				amount += entry.getValue();
+		for (ItemKey current : getKeysByMaterial(matcher.getMaterial())) {
+			if (matcher.matchesIgnoringMaterial(current)) {
+				amount += items.get(current);
 			}
 		}
 		return amount;
 	}
 
+	/**
+	 * Gets how many items fulfilling the given predicate are in this map. This
+	 * has to test every entry, use {@link #getAmount(ItemMatcher)} where
+	 * possible
+	 * 
+	 * @param predicate
+	 *            Predicate to test entries with
+	 * @return amount of matching items in this map
+	 */
+	public int getAmount(ItemPredicate predicate) {
+		if (predicate instanceof ItemMatcher) {
+			return getAmount((ItemMatcher) predicate);
+		}
+		int amount = 0;
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			ItemKey key = items.keyAt(slot);
+			if (key != null && predicate.matches(key)) {
+				amount += items.valueAt(slot);
+			}
+		}
+		return amount;
+	}
+
+	/**
+	 * Gets a submap of this instance which contains all items matched by the
+	 * given matcher and their respective amounts
+	 * 
+	 * @param matcher
+	 *            Matcher to test entries with
+	 * @return New ItemMap with all matching items and their amount
+	 */
+	public ItemMap getStacksMatching(ItemMatcher matcher) {
+		ItemMap result = new ItemMap();
+		for (ItemKey key : getKeysByMaterial(matcher.getMaterial())) {
+			if (matcher.matchesIgnoringMaterial(key)) {
+				result.add(key, items.get(key));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Gets how many items exactly like the given one are in this map. Unlike
+	 * {@link #getAmount(ItemStack)} this doesn't apply any wild card rules,
+	 * but is a single hash lookup
+	 * 
+	 * @param key
+	 *            Key of the item to look up
+	 * @return Amount stored for the given key or 0 if it isn't in this map
+	 */
+	public int getExactAmount(ItemKey key) {
+		return items.get(key);
+	}
+
+	/**
+	 * Gets how many items exactly like the given stack are in this map, see
+	 * {@link #getExactAmount(ItemKey)}
+	 * 
+	 * @param is
+	 *            ItemStack to look up
+	 * @return Amount stored for the given stack or 0 if it isn't in this map
+	 */
+	public int getExactAmount(ItemStack is) {
+		return items.get(ItemKey.of(is));
+	}
+
 	/**
 	 * @return How many items are stored in this map total
 	 */
@@ -355,11 +587,49 @@ public class ItemMap {
 	 * @return How many unique items are stored in this map
 	 */
 	public int getTotalUniqueItemAmount() {
-		return items.keySet().size();
+		return items.size();
+	}
+
+	/**
+	 * Passes every entry of this map to the given visitor without copying
+	 * anything. This is the preferred way to iterate over an ItemMap, use
+	 * {@link #getEntrySet()} only if a snapshot independent of this map is
+	 * needed
+	 * 
+	 * @param visitor
+	 *            Visitor to call for each entry
+	 * @return True if all entries were visited, false if the visitor stopped
+	 *         the iteration early
+	 */
+	public boolean forEachEntry(ItemEntryVisitor visitor) {
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			ItemKey key = items.keyAt(slot);
+			if (key != null && !visitor.visit(key, items.valueAt(slot))) {
+				return false;
+			}
+		}
+		return true;
 	}
 
+	/**
+	 * Creates a copy of the content of this map. Every call clones all
+	 * entries, so internal code and callers only reading the map should use
+	 * {@link #forEachEntry(ItemEntryVisitor)} instead
+	 * 
+	 * @return Snapshot of the content of this map as ItemStacks with an amount
+	 *         of one mapped to their respective amounts. Changes to the
+	 *         returned set are not reflected in this map
+	 */
 	public Set<Entry<ItemStack, Integer>> getEntrySet() {
-		return ((HashMap<ItemStack, Integer>) items.clone()).entrySet();
+		HashMap<ItemStack, Integer> copy = new HashMap<ItemStack, Integer>();
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			ItemKey key = items.keyAt(slot);
+			if (key == null) {
+				continue;
+			}
+			copy.put(key.toItemStack(), items.valueAt(slot));
+		}
+		return copy.entrySet();
 	}
 
 	/**
@@ -372,18 +642,7 @@ public class ItemMap {
 	 *         not
 	 */
 	public boolean containedExactlyIn(Inventory i) {
-		ItemMap invMap = new ItemMap(i);
-		for (Entry<ItemStack, Integer> entry : getEntrySet()) {
-			if (!entry.getValue().equals(invMap.getAmount(entry.getKey()))) {
-				return false;
-			}
-		}
-		for (ItemStack is : i.getContents()) {
-			if (getStacksByMaterial(is).getTotalUniqueItemAmount() == 0) {
-				return false;
-			}
-		}
-		return true;
+		return InventoryComparator.containedExactlyIn(this, i);
 	}
 
 	/**
@@ -398,21 +657,15 @@ public class ItemMap {
 	 *         inventory, false if not
 	 */
 	public boolean isContainedIn(Inventory i) {
-		ItemMap invMap = new ItemMap(i);
-		for (Entry<ItemStack, Integer> entry : getEntrySet()) {
-			if (entry.getValue() > invMap.getAmount(entry.getKey())) {
-				return false;
-			}
-		}
-		return true;
+		return InventoryComparator.isContainedIn(this, i);
 	}
 
 	public String toString() {
-		String res = "";
-		for (ItemStack is : getItemStackRepresentation()) {
-			res += is.toString() + ";";
+		StringBuilder res = new StringBuilder();
+		for (Iterator<ItemStack> iter = getItemStackIterator(); iter.hasNext();) {
+			res.append(iter.next().toString()).append(';');
 		}
-		return res;
+		return res.toString();
 	}
 
 	/**
@@ -426,27 +679,64 @@ public class ItemMap {
 	 *         Integer.MAX_VALUE if this instance is empty
 	 */
 	public int getMultiplesContainedIn(Inventory i) {
-		ItemMap invMap = new ItemMap(i);
-		int res = Integer.MAX_VALUE;
-		for (Entry<ItemStack, Integer> entry : getEntrySet()) {
-			int pulledAmount = invMap.getAmount(entry.getKey());
-			int multiples = pulledAmount / entry.getValue();
-			res = Math.min(res, multiples);
-		}
-		return res;
+		return InventoryComparator.getMultiplesContainedIn(this, i);
 	}
 
 	/**
-	 * Multiplies the whole content of this instance by the given multiplier
+	 * Multiplies the whole content of this instance by the given multiplier.
+	 * Results are truncated and saturate at the bounds of an int, use
+	 * {@link #multiplyContent(long, long, RoundingMode)} for exact scaling
 	 * 
 	 * @param multiplier
 	 *            Multiplier to scale the amount of the contained items with
 	 */
 	public void multiplyContent(double multiplier) {
 		totalItems = 0;
-		for (Entry<ItemStack, Integer> entry : getEntrySet()) {
-			items.put(entry.getKey(), (int) (entry.getValue() * multiplier));
-			totalItems += (int) (entry.getValue() * multiplier);
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			ItemKey key = items.keyAt(slot);
+			if (key == null) {
+				continue;
+			}
+			int newAmount = (int) (items.valueAt(slot) * multiplier);
+			items.setValueAt(slot, newAmount);
+			totalItems += newAmount;
+		}
+	}
+
+	/**
+	 * Multiplies the amount of each item in this instance with the fraction
+	 * numerator / denominator. Each product is computed exactly and then
+	 * rounded to a whole amount according to the given rounding mode, so for
+	 * example scaling by 3 / 2 with {@link RoundingMode#FLOOR} turns 5 items
+	 * into 7. If any new amount or the new total doesn't fit into an int, an
+	 * ArithmeticException is thrown and this instance stays unchanged
+	 * 
+	 * @param numerator
+	 *            Numerator of the factor
+	 * @param denominator
+	 *            Denominator of the factor, must be positive
+	 * @param mode
+	 *            How to round amounts which aren't whole after scaling
+	 * @throws ArithmeticException
+	 *             If the result overflows or rounding is necessary with
+	 *             {@link RoundingMode#UNNECESSARY}
+	 */
+	public void multiplyContent(long numerator, long denominator,
+			RoundingMode mode) {
+		long newTotal = 0;
+		// validate first, so nothing is modified if anything overflows
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			if (items.keyAt(slot) != null) {
+				newTotal += AmountScaling.toInt(AmountScaling.scale(
+						items.valueAt(slot), numerator, denominator, mode));
+			}
+		}
+		totalItems = AmountScaling.toInt(newTotal);
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			if (items.keyAt(slot) != null) {
+				items.setValueAt(slot, (int) AmountScaling.scale(
+						items.valueAt(slot), numerator, denominator, mode));
+			}
 		}
 	}
 
@@ -458,29 +748,58 @@ public class ItemMap {
 	 */
 	public LinkedList<ItemStack> getItemStackRepresentation() {
 		LinkedList<ItemStack> result = new LinkedList<ItemStack>();
-		for (Entry<ItemStack, Integer> entry : getEntrySet()) {
-			ItemStack is = entry.getKey();
-			Integer amount = entry.getValue();
-			while (amount != 0) {
-				ItemStack toAdd = is.clone();
-				int addAmount = Math.min(amount, is.getMaxStackSize());
-				toAdd.setAmount(addAmount);
-				result.add(toAdd);
-				amount -= addAmount;
-			}
+		for (Iterator<ItemStack> iter = getItemStackIterator(); iter.hasNext();) {
+			result.add(iter.next());
 		}
 		return result;
 	}
 
 	/**
-	 * Clones this map
+	 * Lazy version of {@link #getItemStackRepresentation()}, each stack is
+	 * only created once it's requested from the iterator. This map must not be
+	 * modified while the iterator is in use
+	 * 
+	 * @return Iterator over stacksize conform ItemStacks
 	 */
-	public ItemMap clone() {
-		ItemMap clone = new ItemMap();
-		for (Entry<ItemStack, Integer> entry : getEntrySet()) {
-			clone.addItemAmount(entry.getKey(), entry.getValue());
+	public Iterator<ItemStack> getItemStackIterator() {
+		return new StackIterator();
+	}
+
+	/**
+	 * Calculates how many stacks {@link #getItemStackRepresentation()} would
+	 * contain without creating any of them
+	 * 
+	 * @return Amount of stacksize conform ItemStacks needed to represent this
+	 *         map
+	 */
+	public int getStackCount() {
+		int stacks = 0;
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			ItemKey key = items.keyAt(slot);
+			if (key != null) {
+				stacks += InventoryComparator.getStackCount(key,
+						items.valueAt(slot));
+			}
 		}
-		return clone;
+		return stacks;
+	}
+
+	/**
+	 * Clones this map. The clone is always a plain mutable ItemMap, no matter
+	 * the type of this map
+	 */
+	public ItemMap clone() {
+		return new ItemMap(this);
+	}
+
+	/**
+	 * Creates an immutable copy of this map, which can be shared freely. If
+	 * this map already is immutable, it is returned directly
+	 * 
+	 * @return Immutable copy of this map
+	 */
+	public ImmutableItemMap toImmutable() {
+		return ImmutableItemMap.copyOf(this);
 	}
 
 	/**
@@ -492,10 +811,7 @@ public class ItemMap {
 	 *         the inventory, false if not
 	 */
 	public boolean fitsIn(Inventory i) {
-		ItemMap invCopy = new ItemMap(i);
-		ItemMap instanceCopy = this.clone();
-		instanceCopy.merge(invCopy);
-		return instanceCopy.getItemStackRepresentation().size() <= i.getSize();
+		return InventoryComparator.fitsIn(this, i);
 	}
 
 	/**
@@ -508,102 +824,160 @@ public class ItemMap {
 	 */
 	public List<ItemStack> getLoredItemCountRepresentation() {
 		List<ItemStack> items = new LinkedList<ItemStack>();
-		for (Entry<ItemStack, Integer> entry : getEntrySet()) {
-			ItemStack is = entry.getKey().clone();
-			ISUtils.addLore(is,
-					ChatColor.GOLD + "Total item count: " + entry.getValue());
-			if (entry.getValue() > entry.getKey().getType().getMaxStackSize()) {
-				int stacks = entry.getValue() / is.getType().getMaxStackSize();
-				int extra = entry.getValue() % is.getType().getMaxStackSize();
-				StringBuilder out = new StringBuilder(ChatColor.GOLD.toString());
-				if (stacks != 0) {
-					out.append(stacks + " stack" + (stacks == 1 ? "" : "s"));
-				}
-				if (extra != 0) {
-					out.append(" and " + extra);
-					out.append(" item" + (extra == 1 ? "" : "s"));
-				}
-				ISUtils.addLore(is, out.toString());
-			}
-			items.add(is);
+		for (Iterator<ItemStack> iter = getLoredItemCountIterator(); iter
+				.hasNext();) {
+			items.add(iter.next());
 		}
 		return items;
 	}
 
+	/**
+	 * Lazy version of {@link #getLoredItemCountRepresentation()}, each stack
+	 * is only created and lored once it's requested from the iterator. This
+	 * map must not be modified while the iterator is in use
+	 * 
+	 * @return Iterator over the UI representation of this map
+	 */
+	public Iterator<ItemStack> getLoredItemCountIterator() {
+		return new LoredItemCountIterator();
+	}
+
+	private static ItemStack createLoredItemCountStack(ItemKey key, int amount) {
+		ItemStack is = key.toItemStack();
+		ISUtils.addLore(is, ChatColor.GOLD + "Total item count: " + amount);
+		if (amount > key.getMaxStackSize()) {
+			int stacks = amount / key.getMaxStackSize();
+			int extra = amount % key.getMaxStackSize();
+			StringBuilder out = new StringBuilder(ChatColor.GOLD.toString());
+			if (stacks != 0) {
+				out.append(stacks + " stack" + (stacks == 1 ? "" : "s"));
+			}
+			if (extra != 0) {
+				out.append(" and " + extra);
+				out.append(" item" + (extra == 1 ? "" : "s"));
+			}
+			ISUtils.addLore(is, out.toString());
+		}
+		return is;
+	}
+
 	/**
 	 * Attempts to remove the content of this ItemMap from the given inventory.
-	 * If it fails to find all the required items it will stop and return false
+	 * If it fails to find all the required items nothing will be removed and
+	 * false is returned
 	 * 
 	 * @param i
 	 *            Inventory to remove from
 	 * @return True if everything was successfully removed, false if not
 	 */
 	public boolean removeSafelyFrom(Inventory i) {
-		for (Entry<ItemStack, Integer> entry : getEntrySet()) {
-			int amountToRemove = entry.getValue();
-			ItemStack is = entry.getKey();
-			for (ItemStack inventoryStack : i.getContents()) {
-				if (inventoryStack == null) {
-					continue;
-				}
-				if (inventoryStack.getType() == is.getType()) {
-					ItemMap compareMap = new ItemMap(inventoryStack);
-					int removeAmount = Math.min(amountToRemove,
-							compareMap.getAmount(is));
-					if (removeAmount != 0) {
-						ItemStack cloneStack = inventoryStack.clone();
-						cloneStack.setAmount(removeAmount);
-						if (i.removeItem(cloneStack).values().size() != 0) {
-							return false;
-						} else {
-							amountToRemove -= removeAmount;
-							if (amountToRemove <= 0) {
-								break;
-							}
-						}
-					}
-				}
-			}
-			if (amountToRemove > 0) {
-				return false;
-			}
-		}
-		return true;
+		return planRemovalFrom(i).commit();
+	}
+
+	/**
+	 * Computes which slots of the given inventory would have to be modified to
+	 * remove the content of this ItemMap from it, without modifying the
+	 * inventory yet. The returned plan can be inspected and applied later on
+	 * 
+	 * @param i
+	 *            Inventory to plan the removal for
+	 * @return Plan to remove this ItemMap from the given inventory
+	 */
+	public RemovalPlan planRemovalFrom(Inventory i) {
+		return RemovalPlan.create(this, i);
 	}
 
 	public boolean equals(Object o) {
 		if (o instanceof ItemMap) {
 			ItemMap im = (ItemMap) o;
 			if (im.getTotalItemAmount() == getTotalItemAmount()) {
-				return im.getEntrySet().equals(getEntrySet());
+				return im.items.equals(items);
 			}
 		}
 		return false;
 	}
 
 	/**
-	 * Utility to not mess with stacks directly taken from inventories
-	 * 
-	 * @param is
-	 *            Template ItemStack
-	 * @return Cloned ItemStack with its amount set to 1
-	 */
-	private static ItemStack createMapConformCopy(ItemStack is) {
-		ItemStack copy = is.clone();
-		copy.setAmount(1);
-		net.minecraft.server.v1_8_R3.ItemStack s = CraftItemStack
-				.asNMSCopy(copy);
-		if (s == null) {
-			Bukkit.getServer()
-					.getLogger()
-					.log(Level.SEVERE,
-							"Attempted to create map conform copy of "
-									+ copy.toString()
-									+ ", but couldn't because this item can't be held in inventories since Minecraft 1.8");
-			return null;
-		}
-		s.setRepairCost(0);
-		copy = CraftItemStack.asBukkitCopy(s);
-		return copy;
+	 * Walks the slots of the backing map and splits each entry into stacks of
+	 * maximum size on demand
+	 */
+	private class StackIterator implements Iterator<ItemStack> {
+		private int slot = -1;
+		private ItemKey key;
+		private int remaining;
+
+		private StackIterator() {
+			advance();
+		}
+
+		private void advance() {
+			key = null;
+			while (++slot < items.capacity()) {
+				ItemKey next = items.keyAt(slot);
+				if (next != null && items.valueAt(slot) != 0) {
+					key = next;
+					remaining = items.valueAt(slot);
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return key != null;
+		}
+
+		@Override
+		public ItemStack next() {
+			if (key == null) {
+				throw new NoSuchElementException();
+			}
+			int amount = Math.min(remaining, key.getMaxStackSize());
+			ItemStack is = key.toItemStack(amount);
+			remaining -= amount;
+			if (remaining == 0) {
+				advance();
+			}
+			return is;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private class LoredItemCountIterator implements Iterator<ItemStack> {
+		private int slot = -1;
+
+		private LoredItemCountIterator() {
+			advance();
+		}
+
+		private void advance() {
+			while (++slot < items.capacity() && items.keyAt(slot) == null) {
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return slot < items.capacity();
+		}
+
+		@Override
+		public ItemStack next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ItemStack is = createLoredItemCountStack(items.keyAt(slot),
+					items.valueAt(slot));
+			advance();
+			return is;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 }
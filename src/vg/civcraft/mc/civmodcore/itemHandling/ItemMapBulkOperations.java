@@ -0,0 +1,348 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.bukkit.Material;
+
+/**
+ * Runs operations over large collections of ItemMaps in parallel. The
+ * collection is split recursively until each part is small enough to be
+ * handled sequentially by a single worker of a shared fork/join pool.
+ * Reductions like {@link #mergeAll(Collection)} build one partial map per
+ * part, which are then merged pairwise, so no map is ever modified by more
+ * than one thread.
+ *
+ * The results are identical to doing the same operations sequentially with
+ * the corresponding methods of ItemMap. None of the given maps may be
+ * modified while an operation is running.
+ *
+ * The pool is created on first use and consists of daemon threads, so it
+ * never keeps the server from stopping. {@link #shutdown()} terminates it
+ * when CivModCore is disabled, otherwise every reload would leave the threads
+ * of the previous pool behind. Operations running into a pool which was shut
+ * down after they got hold of it are retried on a new one.
+ *
+ */
+public final class ItemMapBulkOperations {
+
+	/**
+	 * Amount of maps below which a part isn't split any further
+	 */
+	private static final int SEQUENTIAL_THRESHOLD = 256;
+
+	private static ForkJoinPool pool;
+
+	private ItemMapBulkOperations() {
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+					new ForkJoinWorkerThreadFactory() {
+						@Override
+						public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+							ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+									.newThread(pool);
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, null, false);
+		}
+		return pool;
+	}
+
+	/**
+	 * Terminates the worker threads of the shared pool. Operations already
+	 * running are completed, later operations create a new pool. Called when
+	 * CivModCore itself is disabled
+	 */
+	public static synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Runs the given task in the shared pool and waits for its result
+	 */
+	private static <V> V invoke(ForkJoinTask<V> task) {
+		while (true) {
+			ForkJoinPool current = getPool();
+			try {
+				return current.invoke(task);
+			} catch (RejectedExecutionException e) {
+				if (!current.isShutdown()) {
+					throw e;
+				}
+				// shut down after it was handed out, the task wasn't started, so
+				// it's run again on the new pool
+			}
+		}
+	}
+
+	private static ItemMap[] toArray(Collection<? extends ItemMap> maps) {
+		return maps.toArray(new ItemMap[maps.size()]);
+	}
+
+	/**
+	 * Merges all the given maps into a single new one, see
+	 * {@link ItemMap#merge(ItemMap)}
+	 *
+	 * @param maps
+	 *            ItemMaps to merge
+	 * @return New ItemMap containing the content of all given maps
+	 */
+	public static ItemMap mergeAll(Collection<? extends ItemMap> maps) {
+		ItemMap[] array = toArray(maps);
+		if (array.length <= SEQUENTIAL_THRESHOLD) {
+			return mergeSequentially(array, 0, array.length);
+		}
+		return invoke(new MergeTask(array, 0, array.length));
+	}
+
+	/**
+	 * Filters each of the given maps by the given material, see
+	 * {@link ItemMap#getStacksByMaterial(Material)}
+	 *
+	 * @param maps
+	 *            ItemMaps to filter
+	 * @param m
+	 *            Material to filter by
+	 * @return New ItemMaps only containing the given material, in the same
+	 *         order as the given maps
+	 */
+	public static List<ItemMap> filterByMaterial(
+			Collection<? extends ItemMap> maps, Material m) {
+		ItemMap[] array = toArray(maps);
+		ItemMap[] result = new ItemMap[array.length];
+		FilterTask task = new FilterTask(array, result, m, 0, array.length);
+		if (array.length <= SEQUENTIAL_THRESHOLD) {
+			task.compute();
+		} else {
+			invoke(task);
+		}
+		return new ArrayList<ItemMap>(Arrays.asList(result));
+	}
+
+	/**
+	 * Merges the content of the given material from all given maps into a
+	 * single new map. This is the same as merging the result of
+	 * {@link #filterByMaterial(Collection, Material)}, without keeping the
+	 * filtered maps around
+	 *
+	 * @param maps
+	 *            ItemMaps to merge
+	 * @param m
+	 *            Material to filter by
+	 * @return New ItemMap containing the given material from all given maps
+	 */
+	public static ItemMap mergeAllByMaterial(
+			Collection<? extends ItemMap> maps, Material m) {
+		ItemMap[] array = toArray(maps);
+		if (array.length <= SEQUENTIAL_THRESHOLD) {
+			return mergeSequentially(array, 0, array.length, m);
+		}
+		return invoke(new MergeTask(array, 0, array.length, m));
+	}
+
+	/**
+	 * Sums up the total item amount of all given maps, see
+	 * {@link ItemMap#getTotalItemAmount()}
+	 *
+	 * @param maps
+	 *            ItemMaps to sum up
+	 * @return Total item amount of all given maps
+	 */
+	public static long getTotalItemAmount(Collection<? extends ItemMap> maps) {
+		ItemMap[] array = toArray(maps);
+		if (array.length <= SEQUENTIAL_THRESHOLD) {
+			return sumSequentially(array, 0, array.length);
+		}
+		return invoke(new TotalTask(array, 0, array.length));
+	}
+
+	/**
+	 * Multiplies the content of each of the given maps in place, see
+	 * {@link ItemMap#multiplyContent(double)}. Each map may only be contained
+	 * once in the given collection
+	 *
+	 * @param maps
+	 *            ItemMaps to multiply
+	 * @param multiplier
+	 *            Multiplier to apply
+	 */
+	public static void multiplyAll(Collection<? extends ItemMap> maps,
+			double multiplier) {
+		ItemMap[] array = toArray(maps);
+		MultiplyTask task = new MultiplyTask(array, multiplier, 0, array.length);
+		if (array.length <= SEQUENTIAL_THRESHOLD) {
+			task.compute();
+		} else {
+			invoke(task);
+		}
+	}
+
+	private static ItemMap mergeSequentially(ItemMap[] maps, int from, int to) {
+		ItemMap result = new ItemMap();
+		for (int i = from; i < to; i++) {
+			result.merge(maps[i]);
+		}
+		return result;
+	}
+
+	private static ItemMap mergeSequentially(ItemMap[] maps, int from, int to,
+			Material m) {
+		ItemMap result = new ItemMap();
+		for (int i = from; i < to; i++) {
+			result.merge(maps[i].getStacksByMaterial(m));
+		}
+		return result;
+	}
+
+	private static long sumSequentially(ItemMap[] maps, int from, int to) {
+		long total = 0;
+		for (int i = from; i < to; i++) {
+			total += maps[i].getTotalItemAmount();
+		}
+		return total;
+	}
+
+	private static class MergeTask extends RecursiveTask<ItemMap> {
+		private static final long serialVersionUID = 1L;
+
+		private final ItemMap[] maps;
+		private final int from;
+		private final int to;
+		private final Material filter;
+
+		private MergeTask(ItemMap[] maps, int from, int to) {
+			this(maps, from, to, null);
+		}
+
+		private MergeTask(ItemMap[] maps, int from, int to, Material filter) {
+			this.maps = maps;
+			this.from = from;
+			this.to = to;
+			this.filter = filter;
+		}
+
+		@Override
+		protected ItemMap compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				return filter == null ? mergeSequentially(maps, from, to)
+						: mergeSequentially(maps, from, to, filter);
+			}
+			int mid = (from + to) >>> 1;
+			MergeTask left = new MergeTask(maps, from, mid, filter);
+			left.fork();
+			ItemMap right = new MergeTask(maps, mid, to, filter).compute();
+			ItemMap leftResult = left.join();
+			// merge the smaller partial map into the bigger one
+			if (leftResult.getTotalUniqueItemAmount() < right
+					.getTotalUniqueItemAmount()) {
+				right.merge(leftResult);
+				return right;
+			}
+			leftResult.merge(right);
+			return leftResult;
+		}
+	}
+
+	private static class FilterTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ItemMap[] maps;
+		private final ItemMap[] result;
+		private final Material filter;
+		private final int from;
+		private final int to;
+
+		private FilterTask(ItemMap[] maps, ItemMap[] result, Material filter,
+				int from, int to) {
+			this.maps = maps;
+			this.result = result;
+			this.filter = filter;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					result[i] = maps[i].getStacksByMaterial(filter);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new FilterTask(maps, result, filter, from, mid),
+					new FilterTask(maps, result, filter, mid, to));
+		}
+	}
+
+	private static class TotalTask extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+
+		private final ItemMap[] maps;
+		private final int from;
+		private final int to;
+
+		private TotalTask(ItemMap[] maps, int from, int to) {
+			this.maps = maps;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Long compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				return sumSequentially(maps, from, to);
+			}
+			int mid = (from + to) >>> 1;
+			TotalTask left = new TotalTask(maps, from, mid);
+			left.fork();
+			long right = new TotalTask(maps, mid, to).compute();
+			return left.join() + right;
+		}
+	}
+
+	private static class MultiplyTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ItemMap[] maps;
+		private final double multiplier;
+		private final int from;
+		private final int to;
+
+		private MultiplyTask(ItemMap[] maps, double multiplier, int from, int to) {
+			this.maps = maps;
+			this.multiplier = multiplier;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					maps[i].multiplyContent(multiplier);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new MultiplyTask(maps, multiplier, from, mid),
+					new MultiplyTask(maps, multiplier, mid, to));
+		}
+	}
+}
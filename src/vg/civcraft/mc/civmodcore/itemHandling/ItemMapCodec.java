@@ -0,0 +1,352 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.server.v1_8_R3.NBTCompressedStreamTools;
+import net.minecraft.server.v1_8_R3.NBTReadLimiter;
+import net.minecraft.server.v1_8_R3.NBTTagCompound;
+
+import org.bukkit.Material;
+import org.bukkit.craftbukkit.v1_8_R3.inventory.CraftItemStack;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Compact, versioned binary format to persist ItemMaps. A stream starts with
+ * a single format version byte, followed by any amount of encoded ItemMaps.
+ * Each map is written as the amount of its entries followed by the entries
+ * themselves, all numbers are written as variable length integers.
+ *
+ * Item keys are dictionary encoded: the first time a key appears in a stream
+ * its full definition (material name, durability and, only if the item has
+ * non default meta, its NBT) is written and it is assigned the next free id.
+ * Every following occurrence of the same key within the stream only writes
+ * that id. Streams containing many maps with similar content, like the
+ * storage of a large amount of chests, therefore only contain each item
+ * definition once.
+ *
+ * Writers and readers are stateful and must be used for a whole stream, the
+ * static helpers encode and decode a single map as a self contained stream.
+ *
+ */
+public final class ItemMapCodec {
+
+	/**
+	 * Version of the format written by this codec
+	 */
+	public static final byte FORMAT_VERSION = 1;
+
+	private ItemMapCodec() {
+	}
+
+	/**
+	 * Encodes a single ItemMap as self contained stream
+	 *
+	 * @param map
+	 *            ItemMap to encode
+	 * @return Encoded map
+	 */
+	public static byte[] encode(ItemMap map) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			new Writer(new DataOutputStream(bytes)).write(map);
+		} catch (IOException e) {
+			// can't happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a single ItemMap written by {@link #encode(ItemMap)}
+	 *
+	 * @param data
+	 *            Encoded map
+	 * @return Decoded map
+	 * @throws IOException
+	 *             If the data is malformed
+	 */
+	public static ItemMap decode(byte[] data) throws IOException {
+		return new Reader(new DataInputStream(new ByteArrayInputStream(data)))
+				.read();
+	}
+
+	/**
+	 * Encodes a single ItemMap as self contained stream into the given buffer,
+	 * starting at its current position
+	 *
+	 * @param map
+	 *            ItemMap to encode
+	 * @param buffer
+	 *            Buffer to write to
+	 * @throws IOException
+	 *             If the buffer doesn't have enough space remaining
+	 */
+	public static void write(ItemMap map, ByteBuffer buffer)
+			throws IOException {
+		new Writer(new DataOutputStream(new ByteBufferOutputStream(buffer)))
+				.write(map);
+	}
+
+	/**
+	 * Decodes a single ItemMap written by {@link #write(ItemMap, ByteBuffer)},
+	 * starting at the current position of the given buffer
+	 *
+	 * @param buffer
+	 *            Buffer to read from
+	 * @return Decoded map
+	 * @throws IOException
+	 *             If the data is malformed
+	 */
+	public static ItemMap read(ByteBuffer buffer) throws IOException {
+		return new Reader(new DataInputStream(new ByteBufferInputStream(buffer)))
+				.read();
+	}
+
+	/**
+	 * Writes ItemMaps into a stream, remembering all keys written so far
+	 *
+	 */
+	public static class Writer {
+		private final DataOutput out;
+		private final Map<ItemKey, Integer> dictionary;
+		private boolean headerWritten;
+
+		public Writer(DataOutput out) {
+			this.out = out;
+			this.dictionary = new HashMap<ItemKey, Integer>();
+			this.headerWritten = false;
+		}
+
+		/**
+		 * Appends the given ItemMap to the stream
+		 *
+		 * @param map
+		 *            ItemMap to write
+		 * @throws IOException
+		 *             If writing to the underlying output fails
+		 */
+		public void write(ItemMap map) throws IOException {
+			if (!headerWritten) {
+				out.writeByte(FORMAT_VERSION);
+				headerWritten = true;
+			}
+			final int count = map.getTotalUniqueItemAmount();
+			final ItemKey[] keys = new ItemKey[count];
+			final int[] amounts = new int[count];
+			map.forEachEntry(new ItemEntryVisitor() {
+				private int index = 0;
+
+				@Override
+				public boolean visit(ItemKey key, int amount) {
+					keys[index] = key;
+					amounts[index] = amount;
+					index++;
+					return true;
+				}
+			});
+			writeVarInt(out, count);
+			for (int i = 0; i < count; i++) {
+				writeKey(keys[i]);
+				writeVarInt(out, zigZag(amounts[i]));
+			}
+		}
+
+		private void writeKey(ItemKey key) throws IOException {
+			Integer id = dictionary.get(key);
+			if (id != null) {
+				writeVarInt(out, id + 1);
+				return;
+			}
+			// 0 marks a new definition
+			writeVarInt(out, 0);
+			dictionary.put(key, dictionary.size());
+			out.writeUTF(key.getMaterial().name());
+			writeVarInt(out, zigZag(key.getDurability()));
+			NBTTagCompound tag = key.hasMeta() ? CraftItemStack.asNMSCopy(
+					key.toItemStack()).getTag() : null;
+			if (tag == null) {
+				writeVarInt(out, 0);
+				return;
+			}
+			ByteArrayOutputStream nbt = new ByteArrayOutputStream();
+			// the cast picks the uncompressed overload, matching the reader
+			NBTCompressedStreamTools.a(tag, (DataOutput) new DataOutputStream(nbt));
+			writeVarInt(out, nbt.size());
+			out.write(nbt.toByteArray());
+		}
+	}
+
+	/**
+	 * Reads ItemMaps from a stream, remembering all keys read so far
+	 *
+	 */
+	public static class Reader {
+		private final DataInput in;
+		private final List<ItemKey> dictionary;
+		private boolean headerRead;
+
+		public Reader(DataInput in) {
+			this.in = in;
+			this.dictionary = new ArrayList<ItemKey>();
+			this.headerRead = false;
+		}
+
+		/**
+		 * Reads the next ItemMap from the stream
+		 *
+		 * @return ItemMap read
+		 * @throws IOException
+		 *             If the data is malformed or reading from the underlying
+		 *             input fails
+		 */
+		public ItemMap read() throws IOException {
+			if (!headerRead) {
+				byte version = in.readByte();
+				if (version != FORMAT_VERSION) {
+					throw new IOException("Unsupported ItemMap format version "
+							+ version);
+				}
+				headerRead = true;
+			}
+			int count = readVarInt(in);
+			ItemMap map = new ItemMap();
+			for (int i = 0; i < count; i++) {
+				ItemKey key = readKey();
+				map.addKeyAmount(key, unZigZag(readVarInt(in)));
+			}
+			return map;
+		}
+
+		private ItemKey readKey() throws IOException {
+			int ref = readVarInt(in);
+			if (ref != 0) {
+				if (ref > dictionary.size()) {
+					throw new IOException("Unknown item key id " + (ref - 1));
+				}
+				return dictionary.get(ref - 1);
+			}
+			String materialName = in.readUTF();
+			Material material = Material.getMaterial(materialName);
+			if (material == null) {
+				throw new IOException("Unknown material " + materialName);
+			}
+			short durability = (short) unZigZag(readVarInt(in));
+			int nbtLength = readVarInt(in);
+			ItemStack is = new ItemStack(material, 1, durability);
+			if (nbtLength != 0) {
+				byte[] nbt = new byte[nbtLength];
+				in.readFully(nbt);
+				NBTTagCompound tag = NBTCompressedStreamTools.a(
+						new DataInputStream(new ByteArrayInputStream(nbt)),
+						NBTReadLimiter.a);
+				net.minecraft.server.v1_8_R3.ItemStack nmsStack = CraftItemStack
+						.asNMSCopy(is);
+				nmsStack.setTag(tag);
+				is = CraftItemStack.asBukkitCopy(nmsStack);
+			}
+			ItemKey key = ItemKey.of(is);
+			if (key == null) {
+				throw new IOException("Material " + materialName
+						+ " can't be held in inventories");
+			}
+			dictionary.add(key);
+			return key;
+		}
+	}
+
+	private static void writeVarInt(DataOutput out, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	/**
+	 * Maps signed to unsigned integers, so small negative numbers stay small
+	 * when written as variable length integers
+	 */
+	private static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static class ByteBufferOutputStream extends OutputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferOutputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buffer.hasRemaining()) {
+				throw new IOException("Buffer is full");
+			}
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (buffer.remaining() < len) {
+				throw new IOException("Buffer is full");
+			}
+			buffer.put(b, off, len);
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			return buffer.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Precompiled form of the rules ItemMap uses to decide whether a stored item
+ * counts towards a searched item. An item matches if it has the same
+ * material, the same durability, unless the searched durability is the wild
+ * card -1, the same enchants and either no lore or the same lore as the
+ * searched item. Enchant and lore comparison can additionally be turned off.
+ *
+ * All properties of the searched item are extracted once when the matcher is
+ * created, testing a key afterwards only compares against the values cached
+ * in the key and never touches any ItemMeta. Since every matcher is bound to
+ * a single material, ItemMaps only need to test the keys of that material.
+ *
+ */
+public final class ItemMatcher implements ItemPredicate {
+
+	/**
+	 * Durability value which matches any durability
+	 */
+	public static final short ANY_DURABILITY = -1;
+
+	private final Material material;
+	private final short durability;
+	private final Map<Enchantment, Integer> enchants;
+	private final List<String> lore;
+	private final boolean ignoreEnchants;
+	private final boolean ignoreLore;
+
+	private ItemMatcher(Material material, short durability,
+			Map<Enchantment, Integer> enchants, List<String> lore,
+			boolean ignoreEnchants, boolean ignoreLore) {
+		this.material = material;
+		this.durability = durability;
+		this.enchants = enchants;
+		this.lore = lore;
+		this.ignoreEnchants = ignoreEnchants;
+		this.ignoreLore = ignoreLore;
+	}
+
+	/**
+	 * Creates a matcher searching for items like the given stack
+	 *
+	 * @param is
+	 *            Searched item, a durability of -1 matches any durability
+	 * @return Matcher for the given item
+	 */
+	public static ItemMatcher of(ItemStack is) {
+		Map<Enchantment, Integer> enchants = Collections.emptyMap();
+		List<String> lore = null;
+		if (is.hasItemMeta()) {
+			ItemMeta meta = is.getItemMeta();
+			if (meta.hasEnchants()) {
+				enchants = ImmutableMap.copyOf(meta.getEnchants());
+			}
+			if (meta.hasLore()) {
+				lore = ImmutableList.copyOf(meta.getLore());
+			}
+		}
+		return new ItemMatcher(is.getType(), is.getDurability(), enchants,
+				lore, false, false);
+	}
+
+	/**
+	 * Creates a matcher searching for items like the one described by the
+	 * given key
+	 *
+	 * @param key
+	 *            Searched item, a durability of -1 matches any durability
+	 * @return Matcher for the given item
+	 */
+	public static ItemMatcher of(ItemKey key) {
+		return new ItemMatcher(key.getMaterial(), key.getDurability(),
+				key.getEnchantments(), key.getLore(), false, false);
+	}
+
+	/**
+	 * @return Copy of this matcher which matches any durability
+	 */
+	public ItemMatcher anyDurability() {
+		return new ItemMatcher(material, ANY_DURABILITY, enchants, lore,
+				ignoreEnchants, ignoreLore);
+	}
+
+	/**
+	 * @return Copy of this matcher which doesn't compare enchants
+	 */
+	public ItemMatcher ignoringEnchants() {
+		return new ItemMatcher(material, durability, enchants, lore, true,
+				ignoreLore);
+	}
+
+	/**
+	 * @return Copy of this matcher which doesn't compare lore
+	 */
+	public ItemMatcher ignoringLore() {
+		return new ItemMatcher(material, durability, enchants, lore,
+				ignoreEnchants, true);
+	}
+
+	/**
+	 * @return Material matched items must have
+	 */
+	public Material getMaterial() {
+		return material;
+	}
+
+	/**
+	 * @return Whether this matcher accepts any durability
+	 */
+	public boolean isDurabilityWildcard() {
+		return durability == ANY_DURABILITY;
+	}
+
+	@Override
+	public boolean matches(ItemKey key) {
+		return key.getMaterial() == material && matchesIgnoringMaterial(key);
+	}
+
+	/**
+	 * Same as {@link #matches(ItemKey)}, but assumes the material was already
+	 * checked, for example because the key was taken from a material index
+	 */
+	boolean matchesIgnoringMaterial(ItemKey key) {
+		if (durability != ANY_DURABILITY && durability != key.getDurability()) {
+			return false;
+		}
+		if (!ignoreEnchants && !enchants.equals(key.getEnchantments())) {
+			return false;
+		}
+		return ignoreLore || key.getLore() == null
+				|| key.getLore().equals(lore);
+	}
+}
@@ -0,0 +1,16 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+/**
+ * Condition which items stored in an ItemMap can be tested against, see
+ * {@link ItemMap#getAmount(ItemPredicate)}
+ *
+ */
+public interface ItemPredicate {
+
+	/**
+	 * @param key
+	 *            Key of the item to test
+	 * @return True if the item fulfills this condition, false if not
+	 */
+	public boolean matches(ItemKey key);
+}
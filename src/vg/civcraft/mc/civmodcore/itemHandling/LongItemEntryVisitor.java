@@ -0,0 +1,21 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+/**
+ * Callback to iterate over the content of a LongItemMap without copying it,
+ * see {@link LongItemMap#forEachEntry(LongItemEntryVisitor)}. Visitors must
+ * not modify the LongItemMap they are visiting
+ *
+ */
+public interface LongItemEntryVisitor {
+
+	/**
+	 * Called once for every entry in the visited LongItemMap
+	 *
+	 * @param key
+	 *            Key of the item
+	 * @param amount
+	 *            Amount of the item stored in the map
+	 * @return True to continue with the next entry, false to stop iterating
+	 */
+	public boolean visit(ItemKey key, long amount);
+}
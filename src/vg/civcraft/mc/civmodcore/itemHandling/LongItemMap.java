@@ -0,0 +1,278 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import java.math.RoundingMode;
+
+import org.bukkit.inventory.ItemStack;
+
+import vg.civcraft.mc.civmodcore.util.ObjectLongHashMap;
+
+/**
+ * Counterpart to ItemMap for storage counts, which may exceed the range of an
+ * int, like the content of large item banks or server wide statistics. Both
+ * the amount of each item and the total are kept as longs and all arithmetic
+ * is checked, any operation which would overflow throws an
+ * ArithmeticException and leaves the map unchanged.
+ *
+ * Unlike ItemMap this map only offers what's needed to count items, it can be
+ * converted from and to a regular ItemMap for everything else.
+ *
+ */
+public class LongItemMap {
+	private final ObjectLongHashMap<ItemKey> items;
+	private long totalItems;
+
+	/**
+	 * Creates an empty LongItemMap
+	 */
+	public LongItemMap() {
+		this.items = new ObjectLongHashMap<ItemKey>();
+		this.totalItems = 0;
+	}
+
+	/**
+	 * Creates a LongItemMap with the same content as the given ItemMap
+	 *
+	 * @param im
+	 *            ItemMap to copy
+	 */
+	public LongItemMap(ItemMap im) {
+		this.items = new ObjectLongHashMap<ItemKey>(
+				im.getTotalUniqueItemAmount());
+		this.totalItems = 0;
+		merge(im);
+	}
+
+	private LongItemMap(LongItemMap other) {
+		this.items = new ObjectLongHashMap<ItemKey>(other.items);
+		this.totalItems = other.totalItems;
+	}
+
+	/**
+	 * Adds the given ItemStack to this map
+	 *
+	 * @param input
+	 *            ItemStack to add
+	 */
+	public void addItemStack(ItemStack input) {
+		if (input != null) {
+			addKeyAmount(ItemKey.of(input), input.getAmount());
+		}
+	}
+
+	/**
+	 * Adds the given amount of the given ItemStack to this map, the amount of
+	 * the stack itself is ignored
+	 *
+	 * @param input
+	 *            ItemStack to add
+	 * @param amount
+	 *            Amount to add
+	 */
+	public void addItemAmount(ItemStack input, long amount) {
+		if (input != null) {
+			addKeyAmount(ItemKey.of(input), amount);
+		}
+	}
+
+	/**
+	 * Adds the given amount of the item described by the given key
+	 *
+	 * @param key
+	 *            Key of the item to add
+	 * @param amount
+	 *            Amount to add
+	 * @throws ArithmeticException
+	 *             If the amount of the item or the total amount would overflow
+	 */
+	public void addKeyAmount(ItemKey key, long amount) {
+		if (key == null) {
+			return;
+		}
+		long newTotal = AmountScaling.add(totalItems, amount);
+		int slot = items.indexOf(key);
+		if (slot >= 0) {
+			items.setValueAt(slot, AmountScaling.add(items.valueAt(slot), amount));
+		} else {
+			items.put(key, amount);
+		}
+		totalItems = newTotal;
+	}
+
+	/**
+	 * Adds the content of the given ItemMap to this map
+	 *
+	 * @param im
+	 *            ItemMap to merge
+	 */
+	public void merge(ItemMap im) {
+		im.forEachEntry(new ItemEntryVisitor() {
+			@Override
+			public boolean visit(ItemKey key, int amount) {
+				addKeyAmount(key, amount);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Adds the content of the given LongItemMap to this map
+	 *
+	 * @param im
+	 *            LongItemMap to merge
+	 */
+	public void merge(LongItemMap im) {
+		im.forEachEntry(new LongItemEntryVisitor() {
+			@Override
+			public boolean visit(ItemKey key, long amount) {
+				addKeyAmount(key, amount);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Gets the amount of items matching the given ItemStack, following the
+	 * same rules as {@link ItemMap#getAmount(ItemStack)}
+	 *
+	 * @param is
+	 *            ItemStack to search for
+	 * @return Amount of matching items
+	 */
+	public long getAmount(ItemStack is) {
+		return getAmount(ItemMatcher.of(is));
+	}
+
+	/**
+	 * @param matcher
+	 *            Matcher to test each entry against
+	 * @return Amount of items matching the given matcher
+	 */
+	public long getAmount(ItemMatcher matcher) {
+		long amount = 0;
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			ItemKey key = items.keyAt(slot);
+			if (key != null && matcher.matches(key)) {
+				amount = AmountScaling.add(amount, items.valueAt(slot));
+			}
+		}
+		return amount;
+	}
+
+	/**
+	 * Gets the amount of the item described by the given key, no wild card
+	 * matching is done
+	 *
+	 * @param key
+	 *            Key of the item
+	 * @return Amount of the item in this map
+	 */
+	public long getExactAmount(ItemKey key) {
+		return items.get(key);
+	}
+
+	/**
+	 * @return How many items are in this map in total
+	 */
+	public long getTotalItemAmount() {
+		return totalItems;
+	}
+
+	/**
+	 * @return How many different items are in this map
+	 */
+	public int getTotalUniqueItemAmount() {
+		return items.size();
+	}
+
+	/**
+	 * Calls the given visitor for every entry in this map, see
+	 * {@link ItemMap#forEachEntry(ItemEntryVisitor)}
+	 *
+	 * @param visitor
+	 *            Visitor to call
+	 * @return True if all entries were visited, false if the visitor stopped
+	 *         early
+	 */
+	public boolean forEachEntry(LongItemEntryVisitor visitor) {
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			ItemKey key = items.keyAt(slot);
+			if (key != null && !visitor.visit(key, items.valueAt(slot))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Multiplies the amount of each entry with the fraction numerator /
+	 * denominator, rounding each result according to the given mode. See
+	 * {@link ItemMap#multiplyContent(long, long, RoundingMode)}
+	 *
+	 * @throws ArithmeticException
+	 *             If a new amount or the new total doesn't fit into a long or
+	 *             rounding is necessary with {@link RoundingMode#UNNECESSARY}
+	 */
+	public void multiplyContent(long numerator, long denominator,
+			RoundingMode mode) {
+		long newTotal = 0;
+		// validate first, so the map stays unchanged if anything overflows
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			if (items.keyAt(slot) != null) {
+				newTotal = AmountScaling.add(newTotal, AmountScaling.scale(
+						items.valueAt(slot), numerator, denominator, mode));
+			}
+		}
+		for (int slot = 0; slot < items.capacity(); slot++) {
+			if (items.keyAt(slot) != null) {
+				items.setValueAt(slot, AmountScaling.scale(items.valueAt(slot),
+						numerator, denominator, mode));
+			}
+		}
+		totalItems = newTotal;
+	}
+
+	/**
+	 * Converts this map into a regular ItemMap
+	 *
+	 * @return ItemMap with the same content
+	 * @throws ArithmeticException
+	 *             If the amount of any item or the total amount doesn't fit
+	 *             into an int
+	 */
+	public ItemMap toItemMap() {
+		AmountScaling.toInt(totalItems);
+		final ItemMap result = new ItemMap();
+		forEachEntry(new LongItemEntryVisitor() {
+			@Override
+			public boolean visit(ItemKey key, long amount) {
+				result.addKeyAmount(key, AmountScaling.toInt(amount));
+				return true;
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public LongItemMap clone() {
+		return new LongItemMap(this);
+	}
+
+	@Override
+	public int hashCode() {
+		return items.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof LongItemMap) {
+			LongItemMap im = (LongItemMap) o;
+			return im.totalItems == totalItems && im.items.equals(items);
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return items.toString();
+	}
+}
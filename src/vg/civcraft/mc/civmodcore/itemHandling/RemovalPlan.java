@@ -0,0 +1,163 @@
+package vg.civcraft.mc.civmodcore.itemHandling;
+
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Describes how the content of an ItemMap can be removed from an inventory on
+ * a per slot basis. The plan is computed in a single pass over the contents
+ * of the inventory without modifying it, afterwards it can be committed,
+ * which writes the new slot contents directly. Either everything is removed
+ * or nothing is, an inventory is never left partially drained.
+ *
+ * A plan is only valid as long as the inventory isn't modified, committing it
+ * verifies that all slots it touches still hold what they held while
+ * planning. Every slot written is marked dirty in the InventoryItemMaps
+ * mirroring the inventory.
+ *
+ */
+public class RemovalPlan {
+	private final Inventory inventory;
+	private final ItemStack[] contents;
+	private final int[] originalAmounts;
+	private final int[] newAmounts;
+	private final boolean satisfiable;
+	private boolean committed;
+
+	private RemovalPlan(Inventory inventory, ItemStack[] contents,
+			int[] originalAmounts, int[] newAmounts, boolean satisfiable) {
+		this.inventory = inventory;
+		this.contents = contents;
+		this.originalAmounts = originalAmounts;
+		this.newAmounts = newAmounts;
+		this.satisfiable = satisfiable;
+		this.committed = false;
+	}
+
+	/**
+	 * Computes the plan to remove the given ItemMap from the given inventory.
+	 * Slots are drained in order, items are matched according to the same
+	 * rules as {@link ItemMap#getAmount(ItemStack)}
+	 */
+	static RemovalPlan create(ItemMap toRemove, Inventory inventory) {
+		ItemStack[] contents = inventory.getContents();
+		final ItemKey[] slotKeys = new ItemKey[contents.length];
+		// stacks of the contents may mirror the live inventory, so amounts are
+		// copied right away
+		int[] originalAmounts = new int[contents.length];
+		for (int slot = 0; slot < contents.length; slot++) {
+			originalAmounts[slot] = contents[slot] == null ? 0
+					: contents[slot].getAmount();
+		}
+		final int[] newAmounts = originalAmounts.clone();
+		final ItemStack[] stacks = contents;
+		boolean satisfiable = toRemove.forEachEntry(new ItemEntryVisitor() {
+			@Override
+			public boolean visit(ItemKey key, int amount) {
+				ItemMatcher matcher = ItemMatcher.of(key);
+				int amountToRemove = amount;
+				for (int slot = 0; slot < stacks.length && amountToRemove > 0; slot++) {
+					if (newAmounts[slot] <= 0
+							|| stacks[slot].getType() != key.getMaterial()) {
+						continue;
+					}
+					if (slotKeys[slot] == null) {
+						slotKeys[slot] = ItemKey.of(stacks[slot]);
+						if (slotKeys[slot] == null) {
+							continue;
+						}
+					}
+					if (!matcher.matchesIgnoringMaterial(slotKeys[slot])) {
+						continue;
+					}
+					int removeAmount = Math.min(amountToRemove,
+							newAmounts[slot]);
+					newAmounts[slot] -= removeAmount;
+					amountToRemove -= removeAmount;
+				}
+				return amountToRemove <= 0;
+			}
+		});
+		return new RemovalPlan(inventory, contents, originalAmounts,
+				newAmounts, satisfiable);
+	}
+
+	/**
+	 * @return Whether the inventory contained everything which should be
+	 *         removed at the time this plan was created
+	 */
+	public boolean isSatisfiable() {
+		return satisfiable;
+	}
+
+	/**
+	 * @return How many slots would be modified by committing this plan
+	 */
+	public int getAffectedSlotCount() {
+		int count = 0;
+		for (int slot = 0; slot < contents.length; slot++) {
+			if (isAffected(slot)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Applies this plan to the inventory it was created for. Nothing is
+	 * modified if the plan isn't satisfiable, was already committed or if the
+	 * inventory was changed since the plan was created. If writing a slot
+	 * fails, all slots already written are restored before the exception is
+	 * passed on
+	 *
+	 * @return True if everything was removed, false if nothing was
+	 */
+	public boolean commit() {
+		if (!satisfiable || committed) {
+			return false;
+		}
+		for (int slot = 0; slot < contents.length; slot++) {
+			if (isAffected(slot)) {
+				ItemStack current = inventory.getItem(slot);
+				if (current == null
+						|| current.getAmount() != originalAmounts[slot]
+						|| !current.isSimilar(contents[slot])) {
+					return false;
+				}
+			}
+		}
+		int slot = 0;
+		try {
+			for (; slot < contents.length; slot++) {
+				if (!isAffected(slot)) {
+					continue;
+				}
+				if (newAmounts[slot] <= 0) {
+					inventory.setItem(slot, null);
+				} else {
+					ItemStack replacement = contents[slot].clone();
+					replacement.setAmount(newAmounts[slot]);
+					inventory.setItem(slot, replacement);
+				}
+				InventoryItemMap.slotChanged(inventory, slot);
+			}
+		} catch (RuntimeException e) {
+			for (int i = 0; i <= slot && i < contents.length; i++) {
+				if (isAffected(i)) {
+					ItemStack original = contents[i].clone();
+					original.setAmount(originalAmounts[i]);
+					inventory.setItem(i, original);
+					InventoryItemMap.slotChanged(inventory, i);
+				}
+			}
+			throw e;
+		}
+		committed = true;
+		return true;
+	}
+
+	private boolean isAffected(int slot) {
+		return contents[slot] != null
+				&& newAmounts[slot] != originalAmounts[slot];
+	}
+}
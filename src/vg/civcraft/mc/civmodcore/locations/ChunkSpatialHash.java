@@ -0,0 +1,415 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import vg.civcraft.mc.civmodcore.util.LongObjectHashMap;
+
+// Spatial hash implementation of SpatialIndex, bucketing values by the
+//  chunks (16x16 columns of blocks) their box touches.
+//
+// A value is stored in the bucket of every chunk overlapped by its box widened
+//  by the border size, so a point query only scans the bucket of a single
+//  chunk and never depends on how values are distributed, unlike the median
+//  splits of QuadTreeIndex which degrade for tightly clustered boxes.
+//
+// Memory grows with the amount of chunks each box covers, this is meant for
+//  boxes which are small compared to the world, like regions around blocks.
+//  Use QuadTreeIndex for boxes spanning thousands of blocks.
+//
+// Not thread safe, an index shared between threads has to be synchronized
+//  externally.
+
+public class ChunkSpatialHash<T> implements SpatialIndex<T> {
+  private static final int CHUNK_SHIFT = 4;
+  private static final int INITIAL_BUCKET_CAPACITY = 4;
+
+  public ChunkSpatialHash() {
+    this(0);
+  }
+
+  public ChunkSpatialHash(int borderSize) {
+    if (borderSize < 0) {
+      throw new IllegalArgumentException("borderSize < 0");
+    }
+    borderSize_ = borderSize;
+    buckets_ = new LongObjectHashMap<Bucket>();
+  }
+
+  // Key of the chunk containing the given block coordinates
+  public static long chunkKey(int x, int z) {
+    return packChunk(x >> CHUNK_SHIFT, z >> CHUNK_SHIFT);
+  }
+
+  private static long packChunk(int chunkX, int chunkZ) {
+    return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+  }
+
+  // Chunk coordinate of a block coordinate widened by the border, which may
+  //  exceed the int range before shifting
+  private static int chunkOf(long coordinate) {
+    return (int) (coordinate >> CHUNK_SHIFT);
+  }
+
+  @Override
+  public void add(T value, int xMin, int zMin, int xMax, int zMax) {
+    if (xMin > xMax || zMin > zMax) {
+      throw new IllegalArgumentException("xMin > xMax || zMin > zMax");
+    }
+    int chunkXMin = chunkOf((long) xMin - borderSize_);
+    int chunkXMax = chunkOf((long) xMax + borderSize_);
+    int chunkZMin = chunkOf((long) zMin - borderSize_);
+    int chunkZMax = chunkOf((long) zMax + borderSize_);
+    // Every chunk of the box holds all values of the box, so checking the
+    //  first one is enough to know whether the value is stored already
+    Bucket first = buckets_.get(packChunk(chunkXMin, chunkZMin));
+    if (first != null && first.indexOf(value) >= 0) {
+      return;
+    }
+    for (int chunkX = chunkXMin; chunkX <= chunkXMax; ++chunkX) {
+      for (int chunkZ = chunkZMin; chunkZ <= chunkZMax; ++chunkZ) {
+        long key = packChunk(chunkX, chunkZ);
+        Bucket bucket = buckets_.get(key);
+        if (bucket == null) {
+          bucket = new Bucket();
+          buckets_.put(key, bucket);
+        }
+        bucket.add(value, xMin, zMin, xMax, zMax);
+      }
+    }
+    ++size_;
+  }
+
+  @Override
+  public void remove(T value, int xMin, int zMin, int xMax, int zMax) {
+    if (xMin > xMax || zMin > zMax) {
+      return;
+    }
+    int chunkXMin = chunkOf((long) xMin - borderSize_);
+    int chunkXMax = chunkOf((long) xMax + borderSize_);
+    int chunkZMin = chunkOf((long) zMin - borderSize_);
+    int chunkZMax = chunkOf((long) zMax + borderSize_);
+    Bucket first = buckets_.get(packChunk(chunkXMin, chunkZMin));
+    if (first == null || first.indexOf(value) < 0) {
+      return;
+    }
+    for (int chunkX = chunkXMin; chunkX <= chunkXMax; ++chunkX) {
+      for (int chunkZ = chunkZMin; chunkZ <= chunkZMax; ++chunkZ) {
+        long key = packChunk(chunkX, chunkZ);
+        Bucket bucket = buckets_.get(key);
+        if (bucket != null && bucket.remove(value) && bucket.count == 0) {
+          buckets_.remove(key);
+        }
+      }
+    }
+    --size_;
+  }
+
+  @Override
+  public int size() {
+    return size_;
+  }
+
+  @Override
+  public int getBorderSize() {
+    return borderSize_;
+  }
+
+  // Amount of chunks containing at least one value
+  public int getChunkCount() {
+    return buckets_.size();
+  }
+
+  public void clear() {
+    buckets_.clear();
+    size_ = 0;
+  }
+
+  // Point queries, none of them allocate anything themselves.
+
+  @Override
+  public <C extends Collection<? super T>> C find(
+      int x, int z, boolean includeBorder, C result) {
+    Bucket bucket = buckets_.get(chunkKey(x, z));
+    if (bucket == null) {
+      return result;
+    }
+    int border = includeBorder ? borderSize_ : 0;
+    for (int i = bucket.nextMatch(0, x, z, border); i >= 0;
+        i = bucket.nextMatch(i + 1, x, z, border)) {
+      result.add(bucket.<T>valueAt(i));
+    }
+    return result;
+  }
+
+  @Override
+  public boolean forEach(int x, int z, boolean includeBorder,
+      SpatialVisitor<? super T> visitor) {
+    Bucket bucket = buckets_.get(chunkKey(x, z));
+    if (bucket == null) {
+      return true;
+    }
+    int border = includeBorder ? borderSize_ : 0;
+    for (int i = bucket.nextMatch(0, x, z, border); i >= 0;
+        i = bucket.nextMatch(i + 1, x, z, border)) {
+      if (!visitor.visit(bucket.<T>valueAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean hasAny(int x, int z, boolean includeBorder) {
+    Bucket bucket = buckets_.get(chunkKey(x, z));
+    return bucket != null
+        && bucket.nextMatch(0, x, z, includeBorder ? borderSize_ : 0) >= 0;
+  }
+
+  @Override
+  public T findFirst(int x, int z, boolean includeBorder) {
+    Bucket bucket = buckets_.get(chunkKey(x, z));
+    if (bucket == null) {
+      return null;
+    }
+    int index = bucket.nextMatch(0, x, z, includeBorder ? borderSize_ : 0);
+    return index < 0 ? null : bucket.<T>valueAt(index);
+  }
+
+  // Range queries. A value stored in several chunks is only reported by the
+  //  chunk containing the reference point of its overlap with the query, the
+  //  minimum corner of box and query intersected, so no set is needed to
+  //  deduplicate results.
+
+  @Override
+  public <C extends Collection<? super T>> C findIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder,
+      C result) {
+    forEachIntersecting(xMin, zMin, xMax, zMax, includeBorder,
+        new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean hasIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder) {
+    return !forEachIntersecting(xMin, zMin, xMax, zMax, includeBorder,
+        CollectingVisitor.STOP);
+  }
+
+  @Override
+  public boolean forEachIntersecting(int xMin, int zMin, int xMax, int zMax,
+      boolean includeBorder, SpatialVisitor<? super T> visitor) {
+    if (xMin > xMax || zMin > zMax) {
+      throw new IllegalArgumentException("xMin > xMax || zMin > zMax");
+    }
+    return visitRange(new RangeQuery<T>(xMin, zMin, xMax, zMax,
+        includeBorder ? borderSize_ : 0, visitor));
+  }
+
+  @Override
+  public <C extends Collection<? super T>> C findInRadius(
+      int x, int z, int radius, boolean includeBorder, C result) {
+    forEachInRadius(x, z, radius, includeBorder,
+        new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean forEachInRadius(int x, int z, int radius,
+      boolean includeBorder, SpatialVisitor<? super T> visitor) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("radius < 0");
+    }
+    RangeQuery<T> query = new RangeQuery<T>(
+        clamp((long) x - radius), clamp((long) z - radius),
+        clamp((long) x + radius), clamp((long) z + radius),
+        includeBorder ? borderSize_ : 0, visitor);
+    query.setCircle(x, z, radius);
+    return visitRange(query);
+  }
+
+  // Visits the buckets of all chunks overlapping the query. Large queries over
+  //  a sparsely populated index walk the existing buckets instead of every
+  //  chunk in the query.
+  private boolean visitRange(RangeQuery<T> query) {
+    int chunkXMin = query.xMin >> CHUNK_SHIFT;
+    int chunkXMax = query.xMax >> CHUNK_SHIFT;
+    int chunkZMin = query.zMin >> CHUNK_SHIFT;
+    int chunkZMax = query.zMax >> CHUNK_SHIFT;
+    long chunkCount = ((long) chunkXMax - chunkXMin + 1)
+        * ((long) chunkZMax - chunkZMin + 1);
+    if (chunkCount > buckets_.size()) {
+      for (int slot = 0; slot < buckets_.capacity(); ++slot) {
+        Bucket bucket = buckets_.valueAt(slot);
+        if (bucket == null) {
+          continue;
+        }
+        long key = buckets_.keyAt(slot);
+        int chunkX = (int) (key >> 32);
+        int chunkZ = (int) key;
+        if (chunkX >= chunkXMin && chunkX <= chunkXMax
+            && chunkZ >= chunkZMin && chunkZ <= chunkZMax
+            && !visitBucket(bucket, chunkX, chunkZ, query)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    for (int chunkX = chunkXMin; chunkX <= chunkXMax; ++chunkX) {
+      for (int chunkZ = chunkZMin; chunkZ <= chunkZMax; ++chunkZ) {
+        Bucket bucket = buckets_.get(packChunk(chunkX, chunkZ));
+        if (bucket != null && !visitBucket(bucket, chunkX, chunkZ, query)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean visitBucket(
+      Bucket bucket, int chunkX, int chunkZ, RangeQuery<T> query) {
+    for (int i = 0; i < bucket.count; ++i) {
+      if (query.matches(bucket, i, chunkX, chunkZ)
+          && !query.visitor.visit(bucket.<T>valueAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int clamp(long value) {
+    return (int) Math.max(Integer.MIN_VALUE,
+        Math.min(Integer.MAX_VALUE, value));
+  }
+
+  private static class RangeQuery<T> {
+    final int xMin;
+    final int zMin;
+    final int xMax;
+    final int zMax;
+    final int border;
+    final SpatialVisitor<? super T> visitor;
+    boolean circle = false;
+    long centerX;
+    long centerZ;
+    long radiusSquared;
+
+    RangeQuery(int xMin, int zMin, int xMax, int zMax, int border,
+        SpatialVisitor<? super T> visitor) {
+      this.xMin = xMin;
+      this.zMin = zMin;
+      this.xMax = xMax;
+      this.zMax = zMax;
+      this.border = border;
+      this.visitor = visitor;
+    }
+
+    void setCircle(int x, int z, int radius) {
+      circle = true;
+      centerX = x;
+      centerZ = z;
+      radiusSquared = (long) radius * radius;
+    }
+
+    // Whether the value at the given index of the bucket of the given chunk
+    //  matches and is reported by this chunk
+    boolean matches(Bucket bucket, int i, int chunkX, int chunkZ) {
+      long boxXMin = (long) bucket.xMin[i] - border;
+      long boxXMax = (long) bucket.xMax[i] + border;
+      long boxZMin = (long) bucket.zMin[i] - border;
+      long boxZMax = (long) bucket.zMax[i] + border;
+      if (boxXMin > xMax || boxXMax < xMin
+          || boxZMin > zMax || boxZMax < zMin) {
+        return false;
+      }
+      if (chunkOf(Math.max(boxXMin, xMin)) != chunkX
+          || chunkOf(Math.max(boxZMin, zMin)) != chunkZ) {
+        return false;
+      }
+      if (!circle) {
+        return true;
+      }
+      long dx = Math.max(0, Math.max(boxXMin - centerX, centerX - boxXMax));
+      long dz = Math.max(0, Math.max(boxZMin - centerZ, centerZ - boxZMax));
+      return dx * dx + dz * dz <= radiusSquared;
+    }
+  }
+
+  // Values of a single chunk next to their bounds as parallel arrays
+  private static class Bucket {
+    Object[] values = new Object[INITIAL_BUCKET_CAPACITY];
+    int[] xMin = new int[INITIAL_BUCKET_CAPACITY];
+    int[] zMin = new int[INITIAL_BUCKET_CAPACITY];
+    int[] xMax = new int[INITIAL_BUCKET_CAPACITY];
+    int[] zMax = new int[INITIAL_BUCKET_CAPACITY];
+    int count;
+
+    void add(Object value, int xMin, int zMin, int xMax, int zMax) {
+      if (count == values.length) {
+        int capacity = values.length * 2;
+        values = Arrays.copyOf(values, capacity);
+        this.xMin = Arrays.copyOf(this.xMin, capacity);
+        this.zMin = Arrays.copyOf(this.zMin, capacity);
+        this.xMax = Arrays.copyOf(this.xMax, capacity);
+        this.zMax = Arrays.copyOf(this.zMax, capacity);
+      }
+      values[count] = value;
+      this.xMin[count] = xMin;
+      this.zMin[count] = zMin;
+      this.xMax[count] = xMax;
+      this.zMax[count] = zMax;
+      ++count;
+    }
+
+    int indexOf(Object value) {
+      for (int i = 0; i < count; ++i) {
+        if (values[i] == value || values[i].equals(value)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    boolean remove(Object value) {
+      int index = indexOf(value);
+      if (index < 0) {
+        return false;
+      }
+      // Order within a bucket doesn't matter, fill the gap with the last value
+      int last = --count;
+      values[index] = values[last];
+      xMin[index] = xMin[last];
+      zMin[index] = zMin[last];
+      xMax[index] = xMax[last];
+      zMax[index] = zMax[last];
+      values[last] = null;
+      return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T valueAt(int index) {
+      return (T) values[index];
+    }
+
+    // Index of the first value at or after start whose box contains the point
+    //  widened by the border, or -1 if there is none.
+    int nextMatch(int start, int x, int z, int border) {
+      long xUpper = (long) x + border;
+      long xLower = (long) x - border;
+      long zUpper = (long) z + border;
+      long zLower = (long) z - border;
+      for (int i = start; i < count; ++i) {
+        if (xMin[i] <= xUpper && xMax[i] >= xLower
+            && zMin[i] <= zUpper && zMax[i] >= zLower) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private final int borderSize_;
+  private final LongObjectHashMap<Bucket> buckets_;
+  private int size_;
+}
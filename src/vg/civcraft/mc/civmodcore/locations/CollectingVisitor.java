@@ -0,0 +1,26 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+import java.util.Collection;
+
+// Adds every visited value to a collection
+class CollectingVisitor<T> implements SpatialVisitor<T> {
+  private final Collection<? super T> result_;
+
+  CollectingVisitor(Collection<? super T> result) {
+    result_ = result;
+  }
+
+  @Override
+  public boolean visit(T value) {
+    result_.add(value);
+    return true;
+  }
+
+  // Stops at the first value, used to check whether there is any match
+  static final SpatialVisitor<Object> STOP = new SpatialVisitor<Object>() {
+    @Override
+    public boolean visit(Object value) {
+      return false;
+    }
+  };
+}
@@ -0,0 +1,228 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+import java.util.Collection;
+import java.util.Set;
+
+// SparseQuadTree which can be queried from any thread without locking.
+//
+// Readers always query an immutable snapshot of the tree, which is published
+//  through a volatile field. Writers apply their changes to a working tree,
+//  which becomes visible to readers once flush() publishes it as the new
+//  snapshot. The working tree shares all subtrees with the last snapshot
+//  which weren't changed since, only the nodes on the paths to changed leaves
+//  are copied, see QuadTreeIndex.copyFor(). Changes should still be batched,
+//  for example by calling flush() once per tick on the main thread, so nodes
+//  touched by multiple changes are only copied once per flush.
+//
+// A reader holding on to a snapshot during a query keeps seeing a consistent
+//  state, even if a flush happens at the same time.
+
+public class ConcurrentSparseQuadTree {
+
+  public ConcurrentSparseQuadTree() {
+    this(0);
+  }
+
+  public ConcurrentSparseQuadTree(Integer borderSize) {
+    snapshot_ = new SparseQuadTree(borderSize);
+    borderSize_ = borderSize;
+  }
+
+  public ConcurrentSparseQuadTree(
+      Integer borderSize, Collection<? extends QTBox> boxes) {
+    snapshot_ = SparseQuadTree.bulkLoad(borderSize, boxes);
+    borderSize_ = borderSize;
+  }
+
+  // Writers. Changes only become visible to readers after the next flush().
+
+  public synchronized void add(QTBox box) {
+    SparseQuadTree working = working();
+    int size = working.size();
+    working.add(box);
+    dirty_ |= working.size() != size;
+  }
+
+  public synchronized void addAll(Collection<? extends QTBox> boxes) {
+    for (QTBox box : boxes) {
+      add(box);
+    }
+  }
+
+  public synchronized void remove(QTBox box) {
+    SparseQuadTree working = working();
+    int size = working.size();
+    working.remove(box);
+    dirty_ |= working.size() != size;
+  }
+
+  public synchronized void removeAll(Collection<? extends QTBox> boxes) {
+    for (QTBox box : boxes) {
+      remove(box);
+    }
+  }
+
+  // Tree changes are applied to, created from the last snapshot on the first
+  //  change after a flush
+  private SparseQuadTree working() {
+    if (working_ == null) {
+      working_ = new SparseQuadTree(
+          snapshot_.getIndex().copyFor(generation_));
+    }
+    return working_;
+  }
+
+  // Whether there are changes which aren't visible to readers yet
+  public synchronized boolean isDirty() {
+    return dirty_;
+  }
+
+  // Publishes all changes made so far to readers. Returns false if there was
+  //  nothing to publish.
+  public synchronized boolean flush() {
+    if (!dirty_) {
+      return false;
+    }
+    snapshot_ = working_;
+    // The published nodes must not be modified anymore, later changes copy
+    //  them into the next generation
+    working_ = null;
+    ++generation_;
+    dirty_ = false;
+    return true;
+  }
+
+  // Readers. All of them query the last published snapshot, see the
+  //  methods of the same name in SparseQuadTree.
+
+  public int size() {
+    return snapshot_.size();
+  }
+
+  public int getBorderSize() {
+    return borderSize_;
+  }
+
+  public Set<QTBox> find(int x, int y) {
+    return snapshot_.find(x, y);
+  }
+
+  public Set<QTBox> find(int x, int y, boolean includeBorder) {
+    return snapshot_.find(x, y, includeBorder);
+  }
+
+  public <C extends Collection<? super QTBox>> C find(
+      int x, int y, boolean includeBorder, C result) {
+    return snapshot_.find(x, y, includeBorder, result);
+  }
+
+  public boolean forEach(int x, int y, boolean includeBorder,
+      SpatialVisitor<? super QTBox> visitor) {
+    return snapshot_.forEach(x, y, includeBorder, visitor);
+  }
+
+  public boolean hasAny(int x, int y) {
+    return snapshot_.hasAny(x, y);
+  }
+
+  public boolean hasAny(int x, int y, boolean includeBorder) {
+    return snapshot_.hasAny(x, y, includeBorder);
+  }
+
+  public QTBox findFirst(int x, int y) {
+    return snapshot_.findFirst(x, y);
+  }
+
+  public QTBox findFirst(int x, int y, boolean includeBorder) {
+    return snapshot_.findFirst(x, y, includeBorder);
+  }
+
+  public <C extends Collection<? super QTBox>> C find(
+      int x, int y, int z, boolean includeBorder, C result) {
+    return snapshot_.find(x, y, z, includeBorder, result);
+  }
+
+  public boolean forEach(int x, int y, int z, boolean includeBorder,
+      SpatialVisitor<? super QTBox> visitor) {
+    return snapshot_.forEach(x, y, z, includeBorder, visitor);
+  }
+
+  public boolean hasAny(int x, int y, int z, boolean includeBorder) {
+    return snapshot_.hasAny(x, y, z, includeBorder);
+  }
+
+  public QTBox findFirst(int x, int y, int z, boolean includeBorder) {
+    return snapshot_.findFirst(x, y, z, includeBorder);
+  }
+
+  public Set<QTBox> findIntersecting(int xMin, int zMin, int xMax, int zMax) {
+    return snapshot_.findIntersecting(xMin, zMin, xMax, zMax);
+  }
+
+  public <C extends Collection<? super QTBox>> C findIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder,
+      C result) {
+    return snapshot_.findIntersecting(
+        xMin, zMin, xMax, zMax, includeBorder, result);
+  }
+
+  public boolean hasIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder) {
+    return snapshot_.hasIntersecting(xMin, zMin, xMax, zMax, includeBorder);
+  }
+
+  public boolean forEachIntersecting(int xMin, int zMin, int xMax, int zMax,
+      boolean includeBorder, SpatialVisitor<? super QTBox> visitor) {
+    return snapshot_.forEachIntersecting(
+        xMin, zMin, xMax, zMax, includeBorder, visitor);
+  }
+
+  public <C extends Collection<? super QTBox>> C findIntersecting(
+      int xMin, int yMin, int zMin, int xMax, int yMax, int zMax,
+      boolean includeBorder, C result) {
+    return snapshot_.findIntersecting(
+        xMin, yMin, zMin, xMax, yMax, zMax, includeBorder, result);
+  }
+
+  public boolean hasIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder) {
+    return snapshot_.hasIntersecting(
+        xMin, yMin, zMin, xMax, yMax, zMax, includeBorder);
+  }
+
+  public boolean forEachIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder,
+      SpatialVisitor<? super QTBox> visitor) {
+    return snapshot_.forEachIntersecting(
+        xMin, yMin, zMin, xMax, yMax, zMax, includeBorder, visitor);
+  }
+
+  public Set<QTBox> findInRadius(int x, int y, int radius) {
+    return snapshot_.findInRadius(x, y, radius);
+  }
+
+  public <C extends Collection<? super QTBox>> C findInRadius(
+      int x, int y, int radius, boolean includeBorder, C result) {
+    return snapshot_.findInRadius(x, y, radius, includeBorder, result);
+  }
+
+  public boolean forEachInRadius(int x, int y, int radius,
+      boolean includeBorder, SpatialVisitor<? super QTBox> visitor) {
+    return snapshot_.forEachInRadius(x, y, radius, includeBorder, visitor);
+  }
+
+  @Override
+  public String toString() {
+    return snapshot_.toString();
+  }
+
+  // Published tree, never modified after it was assigned
+  private volatile SparseQuadTree snapshot_;
+  private final Integer borderSize_;
+  // Writer state, guarded by this
+  private SparseQuadTree working_;
+  // Generation of the nodes of working_, snapshots are built by bulkLoad()
+  //  or published with lower ones
+  private long generation_ = 1;
+  private boolean dirty_ = false;
+}
@@ -0,0 +1,651 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+
+import vg.civcraft.mc.civmodcore.util.LongObjectHashMap;
+
+// Read only SpatialIndex queried directly from a memory mapped snapshot file.
+//
+// write() stores a built QuadTreeIndex: its nodes and the bounds of every
+//  value next to an id instead of the value itself. load() maps such a file
+//  and only reads its nodes to check them, so it's available right away and
+//  only the entries touched by queries are ever loaded. Values are resolved
+//  from their ids when a query first matches them and cached afterwards, so
+//  values in rarely queried areas never take up heap space.
+//
+// The file consists of a header, the nodes of the tree in fixed size records
+//  and the entries of all leaves, all numbers big endian:
+//
+//  header:  magic, version, border size, flags, size, node count, entry count,
+//           reserved (8 ints)
+//  node:    entry count or -1 for inner nodes, first entry or midX, midZ,
+//           vertical extent low and high, first child (6 ints). The children
+//           of a node are stored next to each other: NW, SW, NE, SE.
+//  entry:   xMin, xMax, zMin, zMax, yMin and yMax if the flags say so (ints),
+//           id (long)
+//
+// Queries match exactly like the ones of the QuadTreeIndex the file was
+//  written from, as long as the ids resolve to the same values. Not thread
+//  safe, because of the cache.
+
+public class MappedSpatialIndex<T> implements SpatialIndex3D<T> {
+  public static final int MAGIC = 0x434D5349;
+  public static final int VERSION = 1;
+  private static final int FLAG_Y_BOUNDS = 1;
+  private static final int HEADER_BYTES = 32;
+  private static final int NODE_BYTES = 24;
+  // Stands in for ids which resolved to null in the cache
+  private static final Object MISSING = new Object();
+
+  private MappedSpatialIndex(ByteBuffer buffer,
+      SpatialIdResolver<? extends T> resolver) throws IOException {
+    if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a spatial index snapshot");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported snapshot version "
+          + buffer.getInt(4));
+    }
+    borderSize_ = buffer.getInt(8);
+    hasY_ = (buffer.getInt(12) & FLAG_Y_BOUNDS) != 0;
+    size_ = buffer.getInt(16);
+    int nodeCount = buffer.getInt(20);
+    int entryCount = buffer.getInt(24);
+    if (borderSize_ < 0 || size_ < 0 || nodeCount < 1 || entryCount < 0
+        || buffer.capacity() != fileSize(nodeCount, entryCount, hasY_)) {
+      throw new IOException("Corrupt spatial index snapshot");
+    }
+    checkNodes(buffer, nodeCount, entryCount);
+    entryBytes_ = entryBytes(hasY_);
+    entriesOffset_ = HEADER_BYTES + nodeCount * NODE_BYTES;
+    buffer_ = buffer;
+    resolver_ = resolver;
+    cache_ = new LongObjectHashMap<Object>();
+  }
+
+  // Queries trust the node records, so a bad one has to fail here instead of
+  //  sending them into an endless loop or past the end of the file. Children
+  //  are always stored after their parent, which also rules out cycles.
+  private static void checkNodes(ByteBuffer buffer, int nodeCount,
+      int entryCount) throws IOException {
+    for (int i = 0; i < nodeCount; ++i) {
+      int pos = HEADER_BYTES + i * NODE_BYTES;
+      int count = buffer.getInt(pos);
+      boolean valid;
+      if (count == -1) {
+        int firstChild = buffer.getInt(pos + 20);
+        valid = firstChild > i && firstChild < nodeCount - 3;
+      } else {
+        int first = buffer.getInt(pos + 4);
+        valid = count >= 0 && first >= 0
+            && (long) first + count <= entryCount;
+      }
+      if (!valid) {
+        throw new IOException("Corrupt spatial index snapshot");
+      }
+    }
+  }
+
+  // Maps the given snapshot file. The file must not be modified while it's
+  //  mapped, write() replaces files instead of changing them.
+  public static <T> MappedSpatialIndex<T> load(
+      File file, SpatialIdResolver<? extends T> resolver) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Corrupt spatial index snapshot");
+      }
+      // The mapping stays valid after the file is closed
+      MappedByteBuffer buffer = channel.map(
+          FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new MappedSpatialIndex<T>(buffer, resolver);
+    } finally {
+      raf.close();
+    }
+  }
+
+  public static void write(File file, SparseQuadTree tree,
+      SpatialIdMapper<? super QTBox> ids) throws IOException {
+    write(file, tree.getIndex(), ids);
+  }
+
+  // Writes a snapshot of the given index to the given file, replacing it.
+  //  The snapshot is written to a temporary file next to it first, so
+  //  indices still mapping the old file are not affected. The temporary file
+  //  is written without mapping it, a mapped file couldn't be moved on
+  //  Windows. Windows doesn't allow replacing a mapped file either, there an
+  //  index loaded from the given file has to be garbage collected before
+  //  writing to it again, otherwise this fails. Writing each snapshot to a
+  //  new file avoids that.
+  public static <T> void write(File file, QuadTreeIndex<T> index,
+      SpatialIdMapper<? super T> ids) throws IOException {
+    int[] counts = new int[2];
+    boolean hasY = count(index, counts);
+    long fileSize = fileSize(counts[0], counts[1], hasY);
+    if (fileSize > Integer.MAX_VALUE) {
+      throw new IOException("Spatial index too large for a snapshot");
+    }
+    int entriesOffset = HEADER_BYTES + counts[0] * NODE_BYTES;
+    File temp = new File(file.getPath() + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      // Nodes aren't written in file order, so they are assembled in memory
+      //  together with the header. Entries are written in file order and
+      //  streamed to the file behind them.
+      ByteBuffer nodes = ByteBuffer.allocate(entriesOffset);
+      nodes.putInt(0, MAGIC);
+      nodes.putInt(4, VERSION);
+      nodes.putInt(8, index.getBorderSize());
+      nodes.putInt(12, hasY ? FLAG_Y_BOUNDS : 0);
+      nodes.putInt(16, index.size());
+      nodes.putInt(20, counts[0]);
+      nodes.putInt(24, counts[1]);
+      nodes.putInt(28, 0);
+      channel.position(entriesOffset);
+      SnapshotWriter<T> writer =
+          new SnapshotWriter<T>(nodes, channel, ids, hasY);
+      writer.write(index, 0);
+      writer.flushEntries();
+      writeFully(channel, nodes, 0);
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+    try {
+      try {
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(temp.toPath());
+      throw e;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    buffer.rewind();
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  // Counts nodes and entries of the given subtree, returns whether any leaf
+  //  has vertical bounds
+  private static boolean count(QuadTreeIndex<?> node, int[] counts) {
+    ++counts[0];
+    if (node.isLeaf()) {
+      counts[1] += node.getLeafCount();
+      for (int i = 0; i < node.getLeafCount(); ++i) {
+        if (node.getLeafYMin(i) != Integer.MIN_VALUE
+            || node.getLeafYMax(i) != Integer.MAX_VALUE) {
+          return true;
+        }
+      }
+      return false;
+    }
+    boolean hasY = false;
+    for (int q = 0; q < 4; ++q) {
+      hasY |= count(node.getChild(q), counts);
+    }
+    return hasY;
+  }
+
+  private static long fileSize(int nodeCount, int entryCount, boolean hasY) {
+    return HEADER_BYTES + (long) nodeCount * NODE_BYTES
+        + (long) entryCount * entryBytes(hasY);
+  }
+
+  private static int entryBytes(boolean hasY) {
+    return hasY ? 32 : 24;
+  }
+
+  private static class SnapshotWriter<T> {
+    static final int ENTRY_BUFFER_BYTES = 64 * 1024;
+
+    final ByteBuffer buffer;
+    final FileChannel channel;
+    final ByteBuffer entries;
+    final SpatialIdMapper<? super T> ids;
+    final boolean hasY;
+    int nextNode = 1;
+    int nextEntry = 0;
+
+    // Nodes are put into the given buffer, entries are written to the
+    //  channel at its current position
+    SnapshotWriter(ByteBuffer buffer, FileChannel channel,
+        SpatialIdMapper<? super T> ids, boolean hasY) {
+      this.buffer = buffer;
+      this.channel = channel;
+      this.entries = ByteBuffer.allocate(ENTRY_BUFFER_BYTES);
+      this.ids = ids;
+      this.hasY = hasY;
+    }
+
+    void flushEntries() throws IOException {
+      entries.flip();
+      while (entries.hasRemaining()) {
+        channel.write(entries);
+      }
+      entries.clear();
+    }
+
+    void write(QuadTreeIndex<T> node, int index) throws IOException {
+      int pos = HEADER_BYTES + index * NODE_BYTES;
+      buffer.putInt(pos + 12, node.getYLow());
+      buffer.putInt(pos + 16, node.getYHigh());
+      if (!node.isLeaf()) {
+        int firstChild = nextNode;
+        nextNode += 4;
+        buffer.putInt(pos, -1);
+        buffer.putInt(pos + 4, node.getMidX());
+        buffer.putInt(pos + 8, node.getMidZ());
+        buffer.putInt(pos + 20, firstChild);
+        for (int q = 0; q < 4; ++q) {
+          write(node.getChild(q), firstChild + q);
+        }
+        return;
+      }
+      int count = node.getLeafCount();
+      buffer.putInt(pos, count);
+      buffer.putInt(pos + 4, nextEntry);
+      buffer.putInt(pos + 8, 0);
+      buffer.putInt(pos + 20, 0);
+      nextEntry += count;
+      int entryBytes = entryBytes(hasY);
+      for (int i = 0; i < count; ++i) {
+        if (entries.remaining() < entryBytes) {
+          flushEntries();
+        }
+        entries.putInt(node.getLeafXMin(i));
+        entries.putInt(node.getLeafXMax(i));
+        entries.putInt(node.getLeafZMin(i));
+        entries.putInt(node.getLeafZMax(i));
+        if (hasY) {
+          entries.putInt(node.getLeafYMin(i));
+          entries.putInt(node.getLeafYMax(i));
+        }
+        entries.putLong(ids.getId(node.getLeafValue(i)));
+      }
+    }
+  }
+
+  // Snapshots can't be modified, write a new one instead.
+
+  @Override
+  public void add(T value, int xMin, int zMin, int xMax, int zMax) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void add(
+      T value, int xMin, int yMin, int zMin, int xMax, int yMax, int zMax) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void remove(T value, int xMin, int zMin, int xMax, int zMax) {
+    throw new UnsupportedOperationException();
+  }
+
+  // Amount of values at the time the snapshot was written, including values
+  //  whose ids don't resolve anymore
+  @Override
+  public int size() {
+    return size_;
+  }
+
+  @Override
+  public int getBorderSize() {
+    return borderSize_;
+  }
+
+  // Forgets all resolved values, they are resolved again when queries match
+  //  them the next time
+  public void clearCache() {
+    cache_.clear();
+  }
+
+  @SuppressWarnings("unchecked")
+  private T resolve(int entry) {
+    long id = buffer_.getLong(entry + entryBytes_ - 8);
+    Object value = cache_.get(id);
+    if (value == null) {
+      value = resolver_.resolve(id);
+      cache_.put(id, value == null ? MISSING : value);
+    }
+    return value == MISSING ? null : (T) value;
+  }
+
+  // Point queries, values whose ids don't resolve are skipped.
+
+  @Override
+  public <C extends Collection<? super T>> C find(
+      int x, int z, boolean includeBorder, C result) {
+    forEach(x, z, includeBorder, new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean forEach(int x, int z, boolean includeBorder,
+      SpatialVisitor<? super T> visitor) {
+    return visitPoint(x, Integer.MIN_VALUE, Integer.MAX_VALUE, z,
+        includeBorder ? borderSize_ : 0, visitor);
+  }
+
+  @Override
+  public boolean hasAny(int x, int z, boolean includeBorder) {
+    return !forEach(x, z, includeBorder, CollectingVisitor.STOP);
+  }
+
+  @Override
+  public T findFirst(int x, int z, boolean includeBorder) {
+    FirstVisitor<T> first = new FirstVisitor<T>();
+    forEach(x, z, includeBorder, first);
+    return first.value;
+  }
+
+  @Override
+  public <C extends Collection<? super T>> C find(
+      int x, int y, int z, boolean includeBorder, C result) {
+    forEach(x, y, z, includeBorder, new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean forEach(int x, int y, int z, boolean includeBorder,
+      SpatialVisitor<? super T> visitor) {
+    int border = includeBorder ? borderSize_ : 0;
+    return visitPoint(x, (long) y - border, (long) y + border, z, border,
+        visitor);
+  }
+
+  @Override
+  public boolean hasAny(int x, int y, int z, boolean includeBorder) {
+    return !forEach(x, y, z, includeBorder, CollectingVisitor.STOP);
+  }
+
+  @Override
+  public T findFirst(int x, int y, int z, boolean includeBorder) {
+    FirstVisitor<T> first = new FirstVisitor<T>();
+    forEach(x, y, z, includeBorder, first);
+    return first.value;
+  }
+
+  // Hands all values of the leaf containing the point, whose boxes contain
+  //  the point and overlap the vertical range, to the visitor
+  private boolean visitPoint(int x, long yLower, long yUpper, int z,
+      int border, SpatialVisitor<? super T> visitor) {
+    int node = HEADER_BYTES;
+    int count;
+    while ((count = buffer_.getInt(node)) < 0) {
+      int child = buffer_.getInt(node + 20);
+      if (x > buffer_.getInt(node + 4)) {
+        child += 2;
+      }
+      if (z > buffer_.getInt(node + 8)) {
+        child += 1;
+      }
+      node = HEADER_BYTES + child * NODE_BYTES;
+    }
+    if (buffer_.getInt(node + 12) > yUpper
+        || buffer_.getInt(node + 16) < yLower) {
+      return true;
+    }
+    long xUpper = (long) x + border;
+    long xLower = (long) x - border;
+    long zUpper = (long) z + border;
+    long zLower = (long) z - border;
+    int entry = entriesOffset_ + buffer_.getInt(node + 4) * entryBytes_;
+    for (int i = 0; i < count; ++i, entry += entryBytes_) {
+      if (buffer_.getInt(entry) > xUpper || buffer_.getInt(entry + 4) < xLower
+          || buffer_.getInt(entry + 8) > zUpper
+          || buffer_.getInt(entry + 12) < zLower) {
+        continue;
+      }
+      if (hasY_ && (buffer_.getInt(entry + 16) > yUpper
+          || buffer_.getInt(entry + 20) < yLower)) {
+        continue;
+      }
+      T value = resolve(entry);
+      if (value != null && !visitor.visit(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Range queries, deduplicated the same way as in QuadTreeIndex
+
+  @Override
+  public <C extends Collection<? super T>> C findIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder,
+      C result) {
+    forEachIntersecting(xMin, zMin, xMax, zMax, includeBorder,
+        new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean hasIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder) {
+    return !forEachIntersecting(xMin, zMin, xMax, zMax, includeBorder,
+        CollectingVisitor.STOP);
+  }
+
+  @Override
+  public boolean forEachIntersecting(int xMin, int zMin, int xMax, int zMax,
+      boolean includeBorder, SpatialVisitor<? super T> visitor) {
+    return forEachIntersecting(xMin, Integer.MIN_VALUE, zMin,
+        xMax, Integer.MAX_VALUE, zMax, includeBorder, visitor);
+  }
+
+  @Override
+  public <C extends Collection<? super T>> C findIntersecting(
+      int xMin, int yMin, int zMin, int xMax, int yMax, int zMax,
+      boolean includeBorder, C result) {
+    forEachIntersecting(xMin, yMin, zMin, xMax, yMax, zMax, includeBorder,
+        new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean hasIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder) {
+    return !forEachIntersecting(xMin, yMin, zMin, xMax, yMax, zMax,
+        includeBorder, CollectingVisitor.STOP);
+  }
+
+  @Override
+  public boolean forEachIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder,
+      SpatialVisitor<? super T> visitor) {
+    if (xMin > xMax || yMin > yMax || zMin > zMax) {
+      throw new IllegalArgumentException(
+          "xMin > xMax || yMin > yMax || zMin > zMax");
+    }
+    Query<T> query = new Query<T>(xMin, yMin, zMin, xMax, yMax, zMax,
+        includeBorder ? borderSize_ : 0, visitor);
+    return visitRange(query, 0, Integer.MIN_VALUE, Integer.MAX_VALUE,
+        Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public <C extends Collection<? super T>> C findInRadius(
+      int x, int z, int radius, boolean includeBorder, C result) {
+    forEachInRadius(x, z, radius, includeBorder,
+        new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean forEachInRadius(int x, int z, int radius,
+      boolean includeBorder, SpatialVisitor<? super T> visitor) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("radius < 0");
+    }
+    Query<T> query = new Query<T>(
+        clamp((long) x - radius), Integer.MIN_VALUE, clamp((long) z - radius),
+        clamp((long) x + radius), Integer.MAX_VALUE, clamp((long) z + radius),
+        includeBorder ? borderSize_ : 0, visitor);
+    query.circle = true;
+    query.centerX = x;
+    query.centerZ = z;
+    query.radiusSquared = (long) radius * radius;
+    return visitRange(query, 0, Integer.MIN_VALUE, Integer.MAX_VALUE,
+        Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  // Walks all nodes overlapping the query, the node covers the given bounds
+  private boolean visitRange(Query<T> query, int index,
+      long xLow, long xHigh, long zLow, long zHigh) {
+    int node = HEADER_BYTES + index * NODE_BYTES;
+    if ((long) buffer_.getInt(node + 12) - query.border > query.yMax
+        || (long) buffer_.getInt(node + 16) + query.border < query.yMin) {
+      return true;
+    }
+    int count = buffer_.getInt(node);
+    if (count >= 0) {
+      int entry = entriesOffset_ + buffer_.getInt(node + 4) * entryBytes_;
+      for (int i = 0; i < count; ++i, entry += entryBytes_) {
+        if (!matches(query, entry, xLow, xHigh, zLow, zHigh)) {
+          continue;
+        }
+        T value = resolve(entry);
+        if (value != null && !query.visitor.visit(value)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    int midX = buffer_.getInt(node + 4);
+    int midZ = buffer_.getInt(node + 8);
+    int firstChild = buffer_.getInt(node + 20);
+    long westHigh = Math.min(xHigh, midX);
+    long eastLow = Math.max(xLow, midX + 1L);
+    long northHigh = Math.min(zHigh, midZ);
+    long southLow = Math.max(zLow, midZ + 1L);
+    boolean west = query.xMin <= westHigh && xLow <= westHigh;
+    boolean east = query.xMax >= eastLow && eastLow <= xHigh;
+    boolean north = query.zMin <= northHigh && zLow <= northHigh;
+    boolean south = query.zMax >= southLow && southLow <= zHigh;
+    if (west && north && !visitRange(
+        query, firstChild, xLow, westHigh, zLow, northHigh)) {
+      return false;
+    }
+    if (west && south && !visitRange(
+        query, firstChild + 1, xLow, westHigh, southLow, zHigh)) {
+      return false;
+    }
+    if (east && north && !visitRange(
+        query, firstChild + 2, eastLow, xHigh, zLow, northHigh)) {
+      return false;
+    }
+    if (east && south && !visitRange(
+        query, firstChild + 3, eastLow, xHigh, southLow, zHigh)) {
+      return false;
+    }
+    return true;
+  }
+
+  // Whether the entry matches and the leaf covering the given bounds is the
+  //  one responsible for reporting it
+  private boolean matches(Query<T> query, int entry,
+      long xLow, long xHigh, long zLow, long zHigh) {
+    int border = query.border;
+    long boxXMin = (long) buffer_.getInt(entry) - border;
+    long boxXMax = (long) buffer_.getInt(entry + 4) + border;
+    long boxZMin = (long) buffer_.getInt(entry + 8) - border;
+    long boxZMax = (long) buffer_.getInt(entry + 12) + border;
+    if (boxXMin > query.xMax || boxXMax < query.xMin
+        || boxZMin > query.zMax || boxZMax < query.zMin) {
+      return false;
+    }
+    if (hasY_ && ((long) buffer_.getInt(entry + 16) - border > query.yMax
+        || (long) buffer_.getInt(entry + 20) + border < query.yMin)) {
+      return false;
+    }
+    long refX = Math.max(boxXMin, query.xMin);
+    long refZ = Math.max(boxZMin, query.zMin);
+    if (refX < xLow || refX > xHigh || refZ < zLow || refZ > zHigh) {
+      return false;
+    }
+    if (!query.circle) {
+      return true;
+    }
+    long dx = Math.max(0, Math.max(boxXMin - query.centerX,
+        query.centerX - boxXMax));
+    long dz = Math.max(0, Math.max(boxZMin - query.centerZ,
+        query.centerZ - boxZMax));
+    return dx * dx + dz * dz <= query.radiusSquared;
+  }
+
+  private static int clamp(long value) {
+    return (int) Math.max(Integer.MIN_VALUE,
+        Math.min(Integer.MAX_VALUE, value));
+  }
+
+  private static class Query<T> {
+    final int xMin;
+    final int yMin;
+    final int zMin;
+    final int xMax;
+    final int yMax;
+    final int zMax;
+    final int border;
+    final SpatialVisitor<? super T> visitor;
+    boolean circle = false;
+    long centerX;
+    long centerZ;
+    long radiusSquared;
+
+    Query(int xMin, int yMin, int zMin, int xMax, int yMax, int zMax,
+        int border, SpatialVisitor<? super T> visitor) {
+      this.xMin = xMin;
+      this.yMin = yMin;
+      this.zMin = zMin;
+      this.xMax = xMax;
+      this.yMax = yMax;
+      this.zMax = zMax;
+      this.border = border;
+      this.visitor = visitor;
+    }
+  }
+
+  // Remembers the first value and stops
+  private static class FirstVisitor<T> implements SpatialVisitor<T> {
+    T value;
+
+    @Override
+    public boolean visit(T value) {
+      this.value = value;
+      return false;
+    }
+  }
+
+  private final ByteBuffer buffer_;
+  private final SpatialIdResolver<? extends T> resolver_;
+  // Resolved values by id, MISSING for ids which resolved to null
+  private final LongObjectHashMap<Object> cache_;
+  private final int borderSize_;
+  private final boolean hasY_;
+  private final int size_;
+  private final int entryBytes_;
+  private final int entriesOffset_;
+}
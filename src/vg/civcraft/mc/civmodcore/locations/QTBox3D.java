@@ -0,0 +1,8 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+// QTBox with vertical bounds, SparseQuadTree uses them to skip boxes above or
+//  below y coordinates passed to its queries.
+public interface QTBox3D extends QTBox {
+  public int qtYMin();
+  public int qtYMax();
+}
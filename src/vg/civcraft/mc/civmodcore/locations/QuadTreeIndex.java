@@ -0,0 +1,1289 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import vg.civcraft.mc.civmodcore.locations.SparseQuadTree.Quadrant;
+
+// Sparse quad tree implementation of SpatialIndex, this is the backend of
+//  SparseQuadTree.
+//
+// Leaves hold up to maxNodeSize_ values, once a leaf grows beyond that it's
+//  split into four children at the median of the box corners facing away from
+//  its own quadrant. Values whose box (widened by the border size) spans the
+//  split are stored in every child they overlap. Points with x <= midX_ belong
+//  to the west children, points with z <= midZ_ to the north children.
+//
+// Leaves store their values as parallel arrays next to the bounds of each
+//  value as primitive ints, so scanning a leaf only touches a few flat arrays.
+//
+// Values may also be bounded vertically, see SpatialIndex3D. The tree is still
+//  only split on x and z, but every node tracks the vertical extent of the
+//  values below it, so queries skip subtrees which are entirely above or below
+//  them. Leaves only allocate arrays for vertical bounds once they hold such a
+//  value, values added without them span all y.
+//
+// Values are identified by equals(), unless the index was created to compare
+//  them. Values which both implement Comparable are then the same if
+//  compareTo() returns 0, the way a TreeSet identifies them. SparseQuadTree
+//  uses this, because QTBoxes were always kept in TreeSets.
+//
+// This isn't designed to contain absolutely HUGE boxes, see SparseQuadTree.
+
+public class QuadTreeIndex<T> implements SpatialIndex3D<T> {
+  public static final int MAX_NODE_SIZE = 32;
+  // Subtrees shrinking to this size are collapsed back into a leaf. Half of
+  //  the split size, so a leaf at the limit doesn't split and collapse again
+  //  on every add and remove.
+  public static final int COLLAPSE_SIZE = MAX_NODE_SIZE / 2;
+  private static final int INITIAL_LEAF_CAPACITY = 8;
+
+  public QuadTreeIndex() {
+    this(0);
+  }
+
+  public QuadTreeIndex(int borderSize) {
+    this(borderSize, false);
+  }
+
+  // compareValues selects whether values are identified by compareTo(), see
+  //  above
+  QuadTreeIndex(int borderSize, boolean compareValues) {
+    if (borderSize < 0) {
+      throw new IllegalArgumentException("borderSize < 0");
+    }
+    borderSize_ = borderSize;
+    quadrant_ = Quadrant.Root;
+    compareValues_ = compareValues;
+    clearLeaf();
+  }
+
+  private QuadTreeIndex(
+      int borderSize, Quadrant quadrant, boolean compareValues) {
+    borderSize_ = borderSize;
+    quadrant_ = quadrant;
+    compareValues_ = compareValues;
+    clearLeaf();
+  }
+
+  // Builds an index containing all given values at once, the bounds of each
+  //  value are taken from the arrays at the same position. Instead of
+  //  splitting leaves repeatedly while adding values one by one, each node is
+  //  split exactly once at the median of its values, which is found in linear
+  //  time. The resulting tree only depends on the given values and their
+  //  order. Duplicate values must have been removed already.
+  public static <T> QuadTreeIndex<T> bulkLoad(int borderSize, T[] values,
+      int[] xMin, int[] zMin, int[] xMax, int[] zMax) {
+    return bulkLoad(borderSize, values, xMin, null, zMin, xMax, null, zMax);
+  }
+
+  // Same as above for values with vertical bounds. yMin and yMax may both be
+  //  null if all values span all y.
+  public static <T> QuadTreeIndex<T> bulkLoad(int borderSize, T[] values,
+      int[] xMin, int[] yMin, int[] zMin, int[] xMax, int[] yMax, int[] zMax) {
+    return bulkLoad(
+        borderSize, false, values, xMin, yMin, zMin, xMax, yMax, zMax);
+  }
+
+  static <T> QuadTreeIndex<T> bulkLoad(int borderSize, boolean compareValues,
+      T[] values, int[] xMin, int[] yMin, int[] zMin, int[] xMax, int[] yMax,
+      int[] zMax) {
+    if ((yMin == null) != (yMax == null)) {
+      throw new IllegalArgumentException("yMin == null != yMax == null");
+    }
+    QuadTreeIndex<T> tree = new QuadTreeIndex<T>(borderSize, compareValues);
+    tree.load(values, xMin, xMax, zMin, zMax, yMin, yMax, values.length);
+    return tree;
+  }
+
+  private void load(Object[] values, int[] xMin, int[] xMax,
+      int[] zMin, int[] zMax, int[] yMin, int[] yMax, int count) {
+    size_ = count;
+    if (count <= maxNodeSize_) {
+      setLeaf(values, xMin, xMax, zMin, zMax, yMin, yMax, count);
+      return;
+    }
+    int[] xAxis = splitAxis(xMin, xMax, count, true);
+    int[] zAxis = splitAxis(zMin, zMax, count, false);
+    int midX = select(xAxis, count, (count - 1) / 2);
+    int midZ = select(zAxis, count, (count - 1) / 2);
+    // Count first, so each child gets exactly sized arrays
+    int[] quadrants = new int[count];
+    int[] childCounts = new int[4];
+    for (int i = 0; i < count; ++i) {
+      quadrants[i] = quadrantsOf(xMin[i], xMax[i], zMin[i], zMax[i],
+          midX, midZ);
+      for (int q = 0; q < 4; ++q) {
+        childCounts[q] += (quadrants[i] >>> q) & 1;
+      }
+    }
+    for (int q = 0; q < 4; ++q) {
+      if (childCounts[q] == count) {
+        // Same fallback as split(): a child would contain everything, so
+        //  keep this node a leaf and remember not to try again too soon.
+        maxNodeSize_ = count * 2;
+        setLeaf(values, xMin, xMax, zMin, zMax, yMin, yMax, count);
+        return;
+      }
+    }
+    midX_ = midX;
+    midZ_ = midZ;
+    Object[][] childValues = new Object[4][];
+    int[][] childXMin = new int[4][];
+    int[][] childXMax = new int[4][];
+    int[][] childZMin = new int[4][];
+    int[][] childZMax = new int[4][];
+    int[][] childYMin = new int[4][];
+    int[][] childYMax = new int[4][];
+    for (int q = 0; q < 4; ++q) {
+      childValues[q] = new Object[childCounts[q]];
+      childXMin[q] = new int[childCounts[q]];
+      childXMax[q] = new int[childCounts[q]];
+      childZMin[q] = new int[childCounts[q]];
+      childZMax[q] = new int[childCounts[q]];
+      if (yMin != null) {
+        childYMin[q] = new int[childCounts[q]];
+        childYMax[q] = new int[childCounts[q]];
+      }
+    }
+    int[] next = new int[4];
+    for (int i = 0; i < count; ++i) {
+      for (int q = 0; q < 4; ++q) {
+        if ((quadrants[i] & (1 << q)) != 0) {
+          int slot = next[q]++;
+          childValues[q][slot] = values[i];
+          childXMin[q][slot] = xMin[i];
+          childXMax[q][slot] = xMax[i];
+          childZMin[q][slot] = zMin[i];
+          childZMax[q][slot] = zMax[i];
+          if (yMin != null) {
+            childYMin[q][slot] = yMin[i];
+            childYMax[q][slot] = yMax[i];
+          }
+        }
+      }
+    }
+    createChildren();
+    QuadTreeIndex<T>[] children = children();
+    resetYBounds();
+    for (int q = 0; q < 4; ++q) {
+      children[q].load(childValues[q], childXMin[q], childXMax[q],
+          childZMin[q], childZMax[q], childYMin[q], childYMax[q],
+          childCounts[q]);
+      includeY(children[q].yLow_, children[q].yHigh_);
+    }
+    dropLeaf();
+  }
+
+  @Override
+  public void add(T value, int xMin, int zMin, int xMax, int zMax) {
+    addValue(
+        value, xMin, xMax, zMin, zMax, Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public void add(
+      T value, int xMin, int yMin, int zMin, int xMax, int yMax, int zMax) {
+    addValue(value, xMin, xMax, zMin, zMax, yMin, yMax);
+  }
+
+  // Returns whether the value wasn't contained yet
+  private boolean addValue(Object value, int xMin, int xMax,
+      int zMin, int zMax, int yMin, int yMax) {
+    if (values_ != null) {
+      if (leafIndexOf(value) >= 0) {
+        return false;
+      }
+      appendToLeaf(value, xMin, xMax, zMin, zMax, yMin, yMax);
+      ++size_;
+      split();
+      return true;
+    }
+    boolean added = false;
+    if (xMin - borderSize_ <= midX_) {
+      if (zMin - borderSize_ <= midZ_) {
+        nw_ = nw_.copyFor(generation_);
+        added |= nw_.addValue(
+            value, xMin, xMax, zMin, zMax, yMin, yMax);
+      }
+      if (zMax + borderSize_ > midZ_) {
+        sw_ = sw_.copyFor(generation_);
+        added |= sw_.addValue(
+            value, xMin, xMax, zMin, zMax, yMin, yMax);
+      }
+    }
+    if (xMax + borderSize_ > midX_) {
+      if (zMin - borderSize_ <= midZ_) {
+        ne_ = ne_.copyFor(generation_);
+        added |= ne_.addValue(
+            value, xMin, xMax, zMin, zMax, yMin, yMax);
+      }
+      if (zMax + borderSize_ > midZ_) {
+        se_ = se_.copyFor(generation_);
+        added |= se_.addValue(
+            value, xMin, xMax, zMin, zMax, yMin, yMax);
+      }
+    }
+    if (added) {
+      ++size_;
+      includeY(yMin, yMax);
+    }
+    return added;
+  }
+
+  @Override
+  public void remove(T value, int xMin, int zMin, int xMax, int zMax) {
+    removeValue(value, xMin, xMax, zMin, zMax);
+  }
+
+  // Returns whether the value was contained. Subtrees which become underfull
+  //  are collapsed back into a leaf on the way up.
+  private boolean removeValue(
+      Object value, int xMin, int xMax, int zMin, int zMax) {
+    if (values_ != null) {
+      if (!removeFromLeaf(value)) {
+        return false;
+      }
+      --size_;
+      if (count_ <= MAX_NODE_SIZE) {
+        // Whatever made this leaf grow beyond the default is gone
+        maxNodeSize_ = MAX_NODE_SIZE;
+      }
+      return true;
+    }
+    boolean removed = false;
+    if (xMin - borderSize_ <= midX_) {
+      if (zMin - borderSize_ <= midZ_) {
+        nw_ = nw_.copyFor(generation_);
+        removed |= nw_.removeValue(value, xMin, xMax, zMin, zMax);
+      }
+      if (zMax + borderSize_ > midZ_) {
+        sw_ = sw_.copyFor(generation_);
+        removed |= sw_.removeValue(value, xMin, xMax, zMin, zMax);
+      }
+    }
+    if (xMax + borderSize_ > midX_) {
+      if (zMin - borderSize_ <= midZ_) {
+        ne_ = ne_.copyFor(generation_);
+        removed |= ne_.removeValue(value, xMin, xMax, zMin, zMax);
+      }
+      if (zMax + borderSize_ > midZ_) {
+        se_ = se_.copyFor(generation_);
+        removed |= se_.removeValue(value, xMin, xMax, zMin, zMax);
+      }
+    }
+    if (!removed) {
+      return false;
+    }
+    --size_;
+    if (size_ <= COLLAPSE_SIZE) {
+      collapse();
+    }
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return size_;
+  }
+
+  @Override
+  public int getBorderSize() {
+    return borderSize_;
+  }
+
+  // Point queries, none of them allocate anything themselves.
+
+  @Override
+  public <C extends Collection<? super T>> C find(
+      int x, int z, boolean includeBorder, C result) {
+    QuadTreeIndex<T> leaf = leafFor(x, z);
+    int border = includeBorder ? borderSize_ : 0;
+    for (int i = leaf.nextMatch(0, x, z, border); i >= 0;
+        i = leaf.nextMatch(i + 1, x, z, border)) {
+      result.add(leaf.valueAt(i));
+    }
+    return result;
+  }
+
+  @Override
+  public boolean forEach(int x, int z, boolean includeBorder,
+      SpatialVisitor<? super T> visitor) {
+    QuadTreeIndex<T> leaf = leafFor(x, z);
+    int border = includeBorder ? borderSize_ : 0;
+    for (int i = leaf.nextMatch(0, x, z, border); i >= 0;
+        i = leaf.nextMatch(i + 1, x, z, border)) {
+      if (!visitor.visit(leaf.valueAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean hasAny(int x, int z, boolean includeBorder) {
+    return leafFor(x, z).nextMatch(
+        0, x, z, includeBorder ? borderSize_ : 0) >= 0;
+  }
+
+  @Override
+  public T findFirst(int x, int z, boolean includeBorder) {
+    QuadTreeIndex<T> leaf = leafFor(x, z);
+    int index = leaf.nextMatch(0, x, z, includeBorder ? borderSize_ : 0);
+    return index < 0 ? null : leaf.valueAt(index);
+  }
+
+  @Override
+  public <C extends Collection<? super T>> C find(
+      int x, int y, int z, boolean includeBorder, C result) {
+    QuadTreeIndex<T> leaf = leafFor(x, z);
+    int border = includeBorder ? borderSize_ : 0;
+    for (int i = leaf.nextMatch(0, x, y, z, border); i >= 0;
+        i = leaf.nextMatch(i + 1, x, y, z, border)) {
+      result.add(leaf.valueAt(i));
+    }
+    return result;
+  }
+
+  @Override
+  public boolean forEach(int x, int y, int z, boolean includeBorder,
+      SpatialVisitor<? super T> visitor) {
+    QuadTreeIndex<T> leaf = leafFor(x, z);
+    int border = includeBorder ? borderSize_ : 0;
+    for (int i = leaf.nextMatch(0, x, y, z, border); i >= 0;
+        i = leaf.nextMatch(i + 1, x, y, z, border)) {
+      if (!visitor.visit(leaf.valueAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean hasAny(int x, int y, int z, boolean includeBorder) {
+    return leafFor(x, z).nextMatch(
+        0, x, y, z, includeBorder ? borderSize_ : 0) >= 0;
+  }
+
+  @Override
+  public T findFirst(int x, int y, int z, boolean includeBorder) {
+    QuadTreeIndex<T> leaf = leafFor(x, z);
+    int index = leaf.nextMatch(0, x, y, z, includeBorder ? borderSize_ : 0);
+    return index < 0 ? null : leaf.valueAt(index);
+  }
+
+  private QuadTreeIndex<T> leafFor(int x, int z) {
+    QuadTreeIndex<T> node = this;
+    while (node.values_ == null) {
+      if (x <= node.midX_) {
+        node = z <= node.midZ_ ? node.nw_ : node.sw_;
+      } else {
+        node = z <= node.midZ_ ? node.ne_ : node.se_;
+      }
+    }
+    return node;
+  }
+
+  // Index of the first value of this leaf at or after start whose box
+  //  contains the point widened by the border, or -1 if there is none.
+  private int nextMatch(int start, int x, int z, int border) {
+    // Widen the point by the border instead of every box
+    int xUpper = x + border;
+    int xLower = x - border;
+    int zUpper = z + border;
+    int zLower = z - border;
+    for (int i = start; i < count_; ++i) {
+      if (xMin_[i] <= xUpper && xMax_[i] >= xLower
+          && zMin_[i] <= zUpper && zMax_[i] >= zLower) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Same as above, but also checks the vertical bounds of each value
+  private int nextMatch(int start, int x, int y, int z, int border) {
+    long yUpper = (long) y + border;
+    long yLower = (long) y - border;
+    if (yLow_ > yUpper || yHigh_ < yLower) {
+      return -1;
+    }
+    int i = nextMatch(start, x, z, border);
+    while (i >= 0 && yMin_ != null
+        && (yMin_[i] > yUpper || yMax_[i] < yLower)) {
+      i = nextMatch(i + 1, x, z, border);
+    }
+    return i;
+  }
+
+  // Range queries. A value stored in several leaves is only reported by the
+  //  leaf containing the reference point of its overlap with the query, the
+  //  minimum corner of box and query intersected, so no set is needed to
+  //  deduplicate results.
+
+  @Override
+  public <C extends Collection<? super T>> C findIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder,
+      C result) {
+    forEachIntersecting(xMin, zMin, xMax, zMax, includeBorder,
+        new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean hasIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder) {
+    return !forEachIntersecting(xMin, zMin, xMax, zMax, includeBorder,
+        CollectingVisitor.STOP);
+  }
+
+  @Override
+  public boolean forEachIntersecting(int xMin, int zMin, int xMax, int zMax,
+      boolean includeBorder, SpatialVisitor<? super T> visitor) {
+    if (xMin > xMax || zMin > zMax) {
+      throw new IllegalArgumentException("xMin > xMax || zMin > zMax");
+    }
+    return visitRange(new RangeQuery<T>(xMin, zMin, xMax, zMax,
+        includeBorder ? borderSize_ : 0, visitor),
+        Integer.MIN_VALUE, Integer.MAX_VALUE,
+        Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public <C extends Collection<? super T>> C findIntersecting(
+      int xMin, int yMin, int zMin, int xMax, int yMax, int zMax,
+      boolean includeBorder, C result) {
+    forEachIntersecting(xMin, yMin, zMin, xMax, yMax, zMax, includeBorder,
+        new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean hasIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder) {
+    return !forEachIntersecting(xMin, yMin, zMin, xMax, yMax, zMax,
+        includeBorder, CollectingVisitor.STOP);
+  }
+
+  @Override
+  public boolean forEachIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder,
+      SpatialVisitor<? super T> visitor) {
+    if (xMin > xMax || yMin > yMax || zMin > zMax) {
+      throw new IllegalArgumentException(
+          "xMin > xMax || yMin > yMax || zMin > zMax");
+    }
+    RangeQuery<T> query = new RangeQuery<T>(xMin, zMin, xMax, zMax,
+        includeBorder ? borderSize_ : 0, visitor);
+    query.setYRange(yMin, yMax);
+    return visitRange(query, Integer.MIN_VALUE, Integer.MAX_VALUE,
+        Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public <C extends Collection<? super T>> C findInRadius(
+      int x, int z, int radius, boolean includeBorder, C result) {
+    forEachInRadius(x, z, radius, includeBorder,
+        new CollectingVisitor<T>(result));
+    return result;
+  }
+
+  @Override
+  public boolean forEachInRadius(int x, int z, int radius,
+      boolean includeBorder, SpatialVisitor<? super T> visitor) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("radius < 0");
+    }
+    RangeQuery<T> query = new RangeQuery<T>(
+        clamp((long) x - radius), clamp((long) z - radius),
+        clamp((long) x + radius), clamp((long) z + radius),
+        includeBorder ? borderSize_ : 0, visitor);
+    query.setCircle(x, z, radius);
+    return visitRange(query, Integer.MIN_VALUE, Integer.MAX_VALUE,
+        Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  // Walks all nodes overlapping the query, the node covers the given bounds
+  private boolean visitRange(
+      RangeQuery<T> query, long xLow, long xHigh, long zLow, long zHigh) {
+    if ((long) yLow_ - query.border > query.yMax
+        || (long) yHigh_ + query.border < query.yMin) {
+      // Everything below this node is above or below the query
+      return true;
+    }
+    if (values_ != null) {
+      for (int i = 0; i < count_; ++i) {
+        if (!query.matches(this, i, xLow, xHigh, zLow, zHigh)) {
+          continue;
+        }
+        if (query.sink != null) {
+          query.sink.appendToLeaf(values_[i], xMin_[i], xMax_[i],
+              zMin_[i], zMax_[i], yMinAt(i), yMaxAt(i));
+        } else if (!query.visitor.visit(valueAt(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    // Medians are taken from box corners, which may lie outside of this node,
+    //  so the bounds of the children are clipped to the bounds of this node.
+    //  Children with empty bounds can't contain any reference point.
+    long westHigh = Math.min(xHigh, midX_);
+    long eastLow = Math.max(xLow, midX_ + 1L);
+    long northHigh = Math.min(zHigh, midZ_);
+    long southLow = Math.max(zLow, midZ_ + 1L);
+    boolean west = query.xMin <= westHigh && xLow <= westHigh;
+    boolean east = query.xMax >= eastLow && eastLow <= xHigh;
+    boolean north = query.zMin <= northHigh && zLow <= northHigh;
+    boolean south = query.zMax >= southLow && southLow <= zHigh;
+    if (west && north
+        && !nw_.visitRange(query, xLow, westHigh, zLow, northHigh)) {
+      return false;
+    }
+    if (west && south
+        && !sw_.visitRange(query, xLow, westHigh, southLow, zHigh)) {
+      return false;
+    }
+    if (east && north
+        && !ne_.visitRange(query, eastLow, xHigh, zLow, northHigh)) {
+      return false;
+    }
+    if (east && south
+        && !se_.visitRange(query, eastLow, xHigh, southLow, zHigh)) {
+      return false;
+    }
+    return true;
+  }
+
+  private static int clamp(long value) {
+    return (int) Math.max(Integer.MIN_VALUE,
+        Math.min(Integer.MAX_VALUE, value));
+  }
+
+  private static class RangeQuery<T> {
+    final int xMin;
+    final int zMin;
+    final int xMax;
+    final int zMax;
+    final int border;
+    final SpatialVisitor<? super T> visitor;
+    // Leaf collecting matches together with their bounds instead of visiting
+    QuadTreeIndex<T> sink = null;
+    int yMin = Integer.MIN_VALUE;
+    int yMax = Integer.MAX_VALUE;
+    boolean circle = false;
+    long centerX;
+    long centerZ;
+    long radiusSquared;
+
+    RangeQuery(int xMin, int zMin, int xMax, int zMax, int border,
+        SpatialVisitor<? super T> visitor) {
+      this.xMin = xMin;
+      this.zMin = zMin;
+      this.xMax = xMax;
+      this.zMax = zMax;
+      this.border = border;
+      this.visitor = visitor;
+    }
+
+    void setYRange(int yMin, int yMax) {
+      this.yMin = yMin;
+      this.yMax = yMax;
+    }
+
+    void setCircle(int x, int z, int radius) {
+      circle = true;
+      centerX = x;
+      centerZ = z;
+      radiusSquared = (long) radius * radius;
+    }
+
+    // Whether the value at the given index of the leaf matches and the leaf,
+    //  covering the given bounds, is the one responsible for reporting it.
+    boolean matches(QuadTreeIndex<?> leaf, int i,
+        long xLow, long xHigh, long zLow, long zHigh) {
+      long boxXMin = (long) leaf.xMin_[i] - border;
+      long boxXMax = (long) leaf.xMax_[i] + border;
+      long boxZMin = (long) leaf.zMin_[i] - border;
+      long boxZMax = (long) leaf.zMax_[i] + border;
+      if (boxXMin > xMax || boxXMax < xMin
+          || boxZMin > zMax || boxZMax < zMin) {
+        return false;
+      }
+      if (leaf.yMin_ != null && ((long) leaf.yMin_[i] - border > yMax
+          || (long) leaf.yMax_[i] + border < yMin)) {
+        return false;
+      }
+      long refX = Math.max(boxXMin, xMin);
+      long refZ = Math.max(boxZMin, zMin);
+      if (refX < xLow || refX > xHigh || refZ < zLow || refZ > zHigh) {
+        return false;
+      }
+      if (!circle) {
+        return true;
+      }
+      long dx = Math.max(0, Math.max(boxXMin - centerX, centerX - boxXMax));
+      long dz = Math.max(0, Math.max(boxZMin - centerZ, centerZ - boxZMax));
+      return dx * dx + dz * dz <= radiusSquared;
+    }
+  }
+
+  // Compaction. Removing values collapses subtrees holding no more than
+  //  COLLAPSE_SIZE values back into a leaf, but a tree which saw lots of
+  //  churn may still consist of deep, sparse subtrees split at medians of
+  //  values which are long gone. Rebuilding splits all nodes again at the
+  //  medians of the current values and forgets all adapted node sizes.
+
+  // Rebuilds the whole tree at once, see bulkLoad()
+  public void compact() {
+    cursor_ = null;
+    rebuild(Integer.MIN_VALUE, Integer.MAX_VALUE,
+        Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  // Rebuilds the tree a few subtrees at a time, so compaction can be spread
+  //  over multiple ticks. Each call walks the tree from where the last one
+  //  stopped and rebuilds leaves and subtrees holding up to budget values,
+  //  until it has handled roughly budget values. Returns true once a pass
+  //  over the whole tree is complete, the next call starts a new pass.
+  public boolean compactStep(int budget) {
+    if (budget <= 0) {
+      throw new IllegalArgumentException("budget <= 0");
+    }
+    if (cursor_ == null) {
+      cursor_ = new ArrayDeque<Frame<T>>();
+      cursor_.push(new Frame<T>(this, Integer.MIN_VALUE, Integer.MAX_VALUE,
+          Integer.MIN_VALUE, Integer.MAX_VALUE));
+    }
+    int work = 0;
+    while (!cursor_.isEmpty() && work < budget) {
+      // Nodes may have been collapsed or rebuilt since they were pushed.
+      //  Rebuilding a node which isn't part of the tree anymore is harmless.
+      Frame<T> frame = cursor_.pop();
+      QuadTreeIndex<T> node = frame.node;
+      if (node.values_ != null || node.size_ <= budget) {
+        node.rebuild(frame.xLow, frame.xHigh, frame.zLow, frame.zHigh);
+        work += Math.max(1, node.size_);
+        continue;
+      }
+      ++work;
+      // Children with empty bounds can't be reached by any query
+      long westHigh = Math.min(frame.xHigh, node.midX_);
+      long eastLow = Math.max(frame.xLow, node.midX_ + 1L);
+      long northHigh = Math.min(frame.zHigh, node.midZ_);
+      long southLow = Math.max(frame.zLow, node.midZ_ + 1L);
+      boolean west = frame.xLow <= westHigh;
+      boolean east = eastLow <= frame.xHigh;
+      boolean north = frame.zLow <= northHigh;
+      boolean south = southLow <= frame.zHigh;
+      if (east && south) {
+        cursor_.push(new Frame<T>(
+            node.se_, eastLow, frame.xHigh, southLow, frame.zHigh));
+      }
+      if (east && north) {
+        cursor_.push(new Frame<T>(
+            node.ne_, eastLow, frame.xHigh, frame.zLow, northHigh));
+      }
+      if (west && south) {
+        cursor_.push(new Frame<T>(
+            node.sw_, frame.xLow, westHigh, southLow, frame.zHigh));
+      }
+      if (west && north) {
+        cursor_.push(new Frame<T>(
+            node.nw_, frame.xLow, westHigh, frame.zLow, northHigh));
+      }
+    }
+    if (cursor_.isEmpty()) {
+      cursor_ = null;
+      return true;
+    }
+    return false;
+  }
+
+  // Replaces this subtree, which covers the given bounds, with one built from
+  //  scratch out of the same values
+  private void rebuild(long xLow, long xHigh, long zLow, long zHigh) {
+    if (values_ != null) {
+      maxNodeSize_ = MAX_NODE_SIZE;
+      split();
+      return;
+    }
+    // Collect each value once, from the leaf containing the minimum corner
+    //  of its box within this node, the same rule range queries use
+    RangeQuery<T> query = new RangeQuery<T>((int) xLow, (int) zLow,
+        (int) xHigh, (int) zHigh, borderSize_, null);
+    query.sink =
+        new QuadTreeIndex<T>(borderSize_, quadrant_, compareValues_);
+    visitRange(query, xLow, xHigh, zLow, zHigh);
+    QuadTreeIndex<T> sink = query.sink;
+    clearChildren();
+    maxNodeSize_ = MAX_NODE_SIZE;
+    load(sink.values_, sink.xMin_, sink.xMax_, sink.zMin_, sink.zMax_,
+        sink.yMin_, sink.yMax_, sink.count_);
+  }
+
+  // Turns this subtree into a single leaf holding all of its values
+  private void collapse() {
+    QuadTreeIndex<T> leaf =
+        new QuadTreeIndex<T>(borderSize_, quadrant_, compareValues_);
+    gatherInto(leaf, Collections.newSetFromMap(
+        new IdentityHashMap<Object, Boolean>(size_ * 2)));
+    values_ = leaf.values_;
+    xMin_ = leaf.xMin_;
+    xMax_ = leaf.xMax_;
+    zMin_ = leaf.zMin_;
+    zMax_ = leaf.zMax_;
+    yMin_ = leaf.yMin_;
+    yMax_ = leaf.yMax_;
+    count_ = leaf.count_;
+    size_ = leaf.count_;
+    yLow_ = leaf.yLow_;
+    yHigh_ = leaf.yHigh_;
+    maxNodeSize_ = MAX_NODE_SIZE;
+    clearChildren();
+  }
+
+  // Values whose box spans multiple leaves are stored in each of them, seen
+  //  holds the ones already gathered
+  private void gatherInto(QuadTreeIndex<T> leaf, Set<Object> seen) {
+    if (values_ != null) {
+      for (int i = 0; i < count_; ++i) {
+        if (seen.add(values_[i])) {
+          leaf.appendToLeaf(values_[i], xMin_[i], xMax_[i],
+              zMin_[i], zMax_[i], yMinAt(i), yMaxAt(i));
+        }
+      }
+      return;
+    }
+    nw_.gatherInto(leaf, seen);
+    sw_.gatherInto(leaf, seen);
+    ne_.gatherInto(leaf, seen);
+    se_.gatherInto(leaf, seen);
+  }
+
+  // Node of the tree next to the bounds it covers
+  private static class Frame<T> {
+    final QuadTreeIndex<T> node;
+    final long xLow;
+    final long xHigh;
+    final long zLow;
+    final long zHigh;
+
+    Frame(QuadTreeIndex<T> node, long xLow, long xHigh, long zLow, long zHigh) {
+      this.node = node;
+      this.xLow = xLow;
+      this.xHigh = xHigh;
+      this.zLow = zLow;
+      this.zHigh = zHigh;
+    }
+  }
+
+  // Splitting
+
+  private void split() {
+    if (values_ == null || count_ <= maxNodeSize_) {
+      return;
+    }
+    int midX = lowerMedian(splitAxis(xMin_, xMax_, count_, true));
+    int midZ = lowerMedian(splitAxis(zMin_, zMax_, count_, false));
+    midX_ = midX;
+    midZ_ = midZ;
+    createChildren();
+    // Values of a leaf are distinct already, so they are appended to the
+    //  children without looking for duplicates
+    for (int i = 0; i < count_; ++i) {
+      Object value = values_[i];
+      int xMin = xMin_[i];
+      int xMax = xMax_[i];
+      int zMin = zMin_[i];
+      int zMax = zMax_[i];
+      int yMin = yMinAt(i);
+      int yMax = yMaxAt(i);
+      if (xMin - borderSize_ <= midX) {
+        if (zMin - borderSize_ <= midZ) {
+          nw_.appendToLeaf(value, xMin, xMax, zMin, zMax, yMin, yMax);
+        }
+        if (zMax + borderSize_ > midZ) {
+          sw_.appendToLeaf(value, xMin, xMax, zMin, zMax, yMin, yMax);
+        }
+      }
+      if (xMax + borderSize_ > midX) {
+        if (zMin - borderSize_ <= midZ) {
+          ne_.appendToLeaf(value, xMin, xMax, zMin, zMax, yMin, yMax);
+        }
+        if (zMax + borderSize_ > midZ) {
+          se_.appendToLeaf(value, xMin, xMax, zMin, zMax, yMin, yMax);
+        }
+      }
+    }
+    for (QuadTreeIndex<T> child : children()) {
+      child.size_ = child.count_;
+    }
+    if (nw_.size() == count_
+        || sw_.size() == count_
+        || ne_.size() == count_
+        || se_.size() == count_) {
+      // Splitting failed as we split into an identically sized quadrent. Update
+      //  this nodes max size for next time and throw away the work we did.
+      maxNodeSize_ = count_ * 2;
+      clearChildren();
+      return;
+    }
+    boolean sizeAdjusted = false;
+    for (QuadTreeIndex<T> child : children()) {
+      if (child.size() >= maxNodeSize_) {
+        maxNodeSize_ = child.size() * 2;
+        sizeAdjusted = true;
+      }
+    }
+    if (sizeAdjusted) {
+      for (QuadTreeIndex<T> child : children()) {
+        child.maxNodeSize_ = maxNodeSize_;
+      }
+    }
+    dropLeaf();
+  }
+
+  // Coordinates the median of an axis is taken from: the box corner facing
+  //  away from the quadrant of this node or the box center for the root.
+  private int[] splitAxis(int[] min, int[] max, int count, boolean xAxis) {
+    boolean useMin;
+    switch (quadrant_) {
+      case NW:
+        useMin = true;
+        break;
+      case NE:
+        useMin = !xAxis;
+        break;
+      case SW:
+        useMin = xAxis;
+        break;
+      case SE:
+        useMin = false;
+        break;
+      default:
+        int[] centers = new int[count];
+        for (int i = 0; i < count; ++i) {
+          centers[i] = (int) (((long) min[i] + max[i]) / 2);
+        }
+        return centers;
+    }
+    return Arrays.copyOf(useMin ? min : max, count);
+  }
+
+  // Picks the same split coordinate as walking the sorted, distinct values
+  //  up to the middle: the lower median of the distinct values.
+  private static int lowerMedian(int[] values) {
+    Arrays.sort(values);
+    int distinct = 0;
+    for (int i = 0; i < values.length; ++i) {
+      if (i == 0 || values[i] != values[i - 1]) {
+        values[distinct++] = values[i];
+      }
+    }
+    return values[Math.max(0, (distinct / 2) - 1)];
+  }
+
+  // Returns the k-th smallest of the first count values, reordering them.
+  //  Always pivots on the middle element, so the result is deterministic.
+  private static int select(int[] values, int count, int k) {
+    int low = 0;
+    int high = count - 1;
+    while (low < high) {
+      int pivot = values[(low + high) >>> 1];
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          ++i;
+        }
+        while (values[j] > pivot) {
+          --j;
+        }
+        if (i <= j) {
+          int tmp = values[i];
+          values[i] = values[j];
+          values[j] = tmp;
+          ++i;
+          --j;
+        }
+      }
+      if (k <= j) {
+        high = j;
+      } else if (k >= i) {
+        low = i;
+      } else {
+        return values[k];
+      }
+    }
+    return values[k];
+  }
+
+  // Bit mask of the children (NW, SW, NE, SE) a box has to be stored in
+  private int quadrantsOf(
+      int xMin, int xMax, int zMin, int zMax, int midX, int midZ) {
+    int quadrants = 0;
+    if (xMin - borderSize_ <= midX) {
+      if (zMin - borderSize_ <= midZ) {
+        quadrants |= 1;
+      }
+      if (zMax + borderSize_ > midZ) {
+        quadrants |= 2;
+      }
+    }
+    if (xMax + borderSize_ > midX) {
+      if (zMin - borderSize_ <= midZ) {
+        quadrants |= 4;
+      }
+      if (zMax + borderSize_ > midZ) {
+        quadrants |= 8;
+      }
+    }
+    return quadrants;
+  }
+
+  private void createChildren() {
+    nw_ = new QuadTreeIndex<T>(borderSize_, Quadrant.NW, compareValues_);
+    sw_ = new QuadTreeIndex<T>(borderSize_, Quadrant.SW, compareValues_);
+    ne_ = new QuadTreeIndex<T>(borderSize_, Quadrant.NE, compareValues_);
+    se_ = new QuadTreeIndex<T>(borderSize_, Quadrant.SE, compareValues_);
+    nw_.generation_ = generation_;
+    sw_.generation_ = generation_;
+    ne_.generation_ = generation_;
+    se_.generation_ = generation_;
+  }
+
+  // Children in the order NW, SW, NE, SE
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private QuadTreeIndex<T>[] children() {
+    return new QuadTreeIndex[] { nw_, sw_, ne_, se_ };
+  }
+
+  // Leaf storage
+
+  @SuppressWarnings("unchecked")
+  private T valueAt(int index) {
+    return (T) values_[index];
+  }
+
+  private int yMinAt(int index) {
+    return yMin_ == null ? Integer.MIN_VALUE : yMin_[index];
+  }
+
+  private int yMaxAt(int index) {
+    return yMax_ == null ? Integer.MAX_VALUE : yMax_[index];
+  }
+
+  private void appendToLeaf(Object value, int xMin, int xMax,
+      int zMin, int zMax, int yMin, int yMax) {
+    if (count_ == values_.length) {
+      int capacity = values_.length * 2;
+      values_ = Arrays.copyOf(values_, capacity);
+      xMin_ = Arrays.copyOf(xMin_, capacity);
+      xMax_ = Arrays.copyOf(xMax_, capacity);
+      zMin_ = Arrays.copyOf(zMin_, capacity);
+      zMax_ = Arrays.copyOf(zMax_, capacity);
+      if (yMin_ != null) {
+        yMin_ = Arrays.copyOf(yMin_, capacity);
+        yMax_ = Arrays.copyOf(yMax_, capacity);
+      }
+    }
+    if (yMin_ == null
+        && (yMin != Integer.MIN_VALUE || yMax != Integer.MAX_VALUE)) {
+      // First value with vertical bounds, all earlier ones span all y
+      yMin_ = new int[values_.length];
+      yMax_ = new int[values_.length];
+      Arrays.fill(yMin_, Integer.MIN_VALUE);
+      Arrays.fill(yMax_, Integer.MAX_VALUE);
+    }
+    values_[count_] = value;
+    xMin_[count_] = xMin;
+    xMax_[count_] = xMax;
+    zMin_[count_] = zMin;
+    zMax_[count_] = zMax;
+    if (yMin_ != null) {
+      yMin_[count_] = yMin;
+      yMax_[count_] = yMax;
+    }
+    ++count_;
+    includeY(yMin, yMax);
+  }
+
+  private int leafIndexOf(Object value) {
+    for (int i = 0; i < count_; ++i) {
+      if (sameValue(values_[i], value)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private boolean sameValue(Object a, Object b) {
+    if (a == b) {
+      return true;
+    }
+    if (compareValues_ && a instanceof Comparable && b instanceof Comparable) {
+      return ((Comparable<Object>) a).compareTo(b) == 0;
+    }
+    return a.equals(b);
+  }
+
+  // Returns whether the value was contained
+  private boolean removeFromLeaf(Object value) {
+    int index = leafIndexOf(value);
+    if (index < 0) {
+      return false;
+    }
+    // Order within a leaf doesn't matter, so fill the gap with the last value
+    int last = --count_;
+    values_[index] = values_[last];
+    xMin_[index] = xMin_[last];
+    xMax_[index] = xMax_[last];
+    zMin_[index] = zMin_[last];
+    zMax_[index] = zMax_[last];
+    if (yMin_ != null) {
+      yMin_[index] = yMin_[last];
+      yMax_[index] = yMax_[last];
+    }
+    values_[last] = null;
+    if (count_ == 0) {
+      resetYBounds();
+    }
+    return true;
+  }
+
+  private void setLeaf(Object[] values, int[] xMin, int[] xMax,
+      int[] zMin, int[] zMax, int[] yMin, int[] yMax, int count) {
+    int capacity = Math.max(count, INITIAL_LEAF_CAPACITY);
+    values_ = Arrays.copyOf(values, capacity);
+    xMin_ = Arrays.copyOf(xMin, capacity);
+    xMax_ = Arrays.copyOf(xMax, capacity);
+    zMin_ = Arrays.copyOf(zMin, capacity);
+    zMax_ = Arrays.copyOf(zMax, capacity);
+    yMin_ = yMin == null ? null : Arrays.copyOf(yMin, capacity);
+    yMax_ = yMax == null ? null : Arrays.copyOf(yMax, capacity);
+    count_ = count;
+    resetYBounds();
+    for (int i = 0; i < count; ++i) {
+      includeY(yMinAt(i), yMaxAt(i));
+    }
+  }
+
+  private void clearLeaf() {
+    values_ = new Object[INITIAL_LEAF_CAPACITY];
+    xMin_ = new int[INITIAL_LEAF_CAPACITY];
+    xMax_ = new int[INITIAL_LEAF_CAPACITY];
+    zMin_ = new int[INITIAL_LEAF_CAPACITY];
+    zMax_ = new int[INITIAL_LEAF_CAPACITY];
+    yMin_ = null;
+    yMax_ = null;
+    count_ = 0;
+    resetYBounds();
+  }
+
+  private void clearChildren() {
+    nw_ = null;
+    ne_ = null;
+    sw_ = null;
+    se_ = null;
+  }
+
+  private void dropLeaf() {
+    values_ = null;
+    xMin_ = null;
+    xMax_ = null;
+    zMin_ = null;
+    zMax_ = null;
+    yMin_ = null;
+    yMax_ = null;
+    count_ = 0;
+  }
+
+  // The vertical extent of a node only grows until the node is rebuilt, so it
+  //  may be larger than needed, but never too small.
+
+  private void resetYBounds() {
+    yLow_ = Integer.MAX_VALUE;
+    yHigh_ = Integer.MIN_VALUE;
+  }
+
+  private void includeY(int yMin, int yMax) {
+    if (yMin < yLow_) {
+      yLow_ = yMin;
+    }
+    if (yMax > yHigh_) {
+      yHigh_ = yMax;
+    }
+  }
+
+  // Copy on write for ConcurrentSparseQuadTree. Every node belongs to the
+  //  generation it was created or copied in. add() and remove() only modify
+  //  nodes of the same generation as the root in place, all other nodes on
+  //  the path to the changed leaves are copied first, while untouched
+  //  subtrees are shared. Trees published with an older generation are
+  //  therefore never modified. Trees which are never published stay at
+  //  generation 0 and are always modified in place.
+
+  // Returns this node if it belongs to the given generation, otherwise a copy
+  //  of it which does and shares its children
+  QuadTreeIndex<T> copyFor(long generation) {
+    if (generation_ == generation) {
+      return this;
+    }
+    QuadTreeIndex<T> copy =
+        new QuadTreeIndex<T>(borderSize_, quadrant_, compareValues_);
+    copy.generation_ = generation;
+    copy.maxNodeSize_ = maxNodeSize_;
+    copy.size_ = size_;
+    copy.yLow_ = yLow_;
+    copy.yHigh_ = yHigh_;
+    if (values_ != null) {
+      // Leaves are appended to in place, so their arrays can't be shared
+      copy.values_ = values_.clone();
+      copy.xMin_ = xMin_.clone();
+      copy.xMax_ = xMax_.clone();
+      copy.zMin_ = zMin_.clone();
+      copy.zMax_ = zMax_.clone();
+      copy.yMin_ = yMin_ == null ? null : yMin_.clone();
+      copy.yMax_ = yMax_ == null ? null : yMax_.clone();
+      copy.count_ = count_;
+      return copy;
+    }
+    copy.dropLeaf();
+    copy.midX_ = midX_;
+    copy.midZ_ = midZ_;
+    copy.nw_ = nw_;
+    copy.sw_ = sw_;
+    copy.ne_ = ne_;
+    copy.se_ = se_;
+    return copy;
+  }
+
+  // Read access to the structure of the tree for MappedSpatialIndex, which
+  //  writes it to files
+
+  boolean isLeaf() {
+    return values_ != null;
+  }
+
+  int getMidX() {
+    return midX_;
+  }
+
+  int getMidZ() {
+    return midZ_;
+  }
+
+  int getYLow() {
+    return yLow_;
+  }
+
+  int getYHigh() {
+    return yHigh_;
+  }
+
+  // Children in the order NW, SW, NE, SE
+  QuadTreeIndex<T> getChild(int index) {
+    switch (index) {
+      case 0:
+        return nw_;
+      case 1:
+        return sw_;
+      case 2:
+        return ne_;
+      default:
+        return se_;
+    }
+  }
+
+  int getLeafCount() {
+    return count_;
+  }
+
+  T getLeafValue(int index) {
+    return valueAt(index);
+  }
+
+  int getLeafXMin(int index) {
+    return xMin_[index];
+  }
+
+  int getLeafXMax(int index) {
+    return xMax_[index];
+  }
+
+  int getLeafZMin(int index) {
+    return zMin_[index];
+  }
+
+  int getLeafZMax(int index) {
+    return zMax_[index];
+  }
+
+  int getLeafYMin(int index) {
+    return yMinAt(index);
+  }
+
+  int getLeafYMax(int index) {
+    return yMaxAt(index);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(quadrant_);
+    if (values_ != null) {
+      sb.append('[');
+      for (int i = 0; i < count_; ++i) {
+        sb.append(String.format("(%d,%d %d,%d)",
+            xMin_[i], zMin_[i], xMax_[i], zMax_[i]));
+      }
+      sb.append(']');
+      return sb.toString();
+    }
+    sb.append(String.format("{{%d,%d}", midX_, midZ_));
+    sb.append(nw_.toString());
+    sb.append(',');
+    sb.append(sw_.toString());
+    sb.append(',');
+    sb.append(ne_.toString());
+    sb.append(',');
+    sb.append(se_.toString());
+    sb.append('}');
+    return sb.toString();
+  }
+
+  private final int borderSize_;
+  private final Quadrant quadrant_;
+  private final boolean compareValues_;
+  private int midX_;
+  private int midZ_;
+  private int size_;
+  private int maxNodeSize_ = MAX_NODE_SIZE;
+  // Leaf storage, values_ is null for inner nodes
+  private Object[] values_;
+  private int[] xMin_;
+  private int[] xMax_;
+  private int[] zMin_;
+  private int[] zMax_;
+  // Vertical bounds, null if all values of this leaf span all y
+  private int[] yMin_;
+  private int[] yMax_;
+  private int count_;
+  // Vertical extent of all values below this node
+  private int yLow_;
+  private int yHigh_;
+  private QuadTreeIndex<T> nw_;
+  private QuadTreeIndex<T> ne_;
+  private QuadTreeIndex<T> sw_;
+  private QuadTreeIndex<T> se_;
+  // Nodes compactStep() still has to visit, only used on the root
+  private ArrayDeque<Frame<T>> cursor_;
+  // See copyFor()
+  private long generation_;
+}
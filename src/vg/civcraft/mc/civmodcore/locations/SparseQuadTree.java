@@ -1,7 +1,10 @@
 package vg.civcraft.mc.civmodcore.locations;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeSet;
 
 // This isn't designed to contain absolutely HUGE boxes. When the box sizes
@@ -10,9 +13,20 @@ import java.util.TreeSet;
 //  deep and the all encompassing boxes will exist in every tree at every
 //  level, bringing the process to its knees. Boxes with x,y spanning a
 //  million coordinates work just fine and should be sufficient.
+//
+// The tree itself is a QuadTreeIndex, this class reads the bounds of each box
+//  once when it's added or removed and hands them to the index. New code
+//  which doesn't want to implement QTBox can use QuadTreeIndex directly.
+//
+// Boxes are identified by compareTo() like in the TreeSets returned by find(),
+//  adding a box comparing equal to one already in the tree does nothing.
+//
+// Boxes implementing QTBox3D are also bounded vertically, they only match
+//  queries taking a y coordinate within their vertical bounds. All other boxes
+//  span all y.
 
 public class SparseQuadTree {
-  public final int MAX_NODE_SIZE = 32;
+  public final int MAX_NODE_SIZE = QuadTreeIndex.MAX_NODE_SIZE;
 
   public enum Quadrant {
     Root,
@@ -23,96 +37,93 @@ public class SparseQuadTree {
   }
 
   public SparseQuadTree() {
-    boxes_ = new TreeSet<QTBox>();
-    borderSize_ = 0;
-    quadrant_ = Quadrant.Root;
+    index_ = new QuadTreeIndex<QTBox>(0, true);
   }
 
   public SparseQuadTree(Integer borderSize) {
-    boxes_ = new TreeSet<QTBox>();
     if (borderSize == null || borderSize < 0) {
         throw new IllegalArgumentException(
             "borderSize == null || borderSize < 0");
     }
-    borderSize_ = borderSize;
-    quadrant_ = Quadrant.Root;
+    index_ = new QuadTreeIndex<QTBox>(borderSize, true);
   }
 
-  protected SparseQuadTree(Integer borderSize, Quadrant quadrant) {
-    boxes_ = new TreeSet<QTBox>();
-    borderSize_ = borderSize;
-    quadrant_ = quadrant;
+  SparseQuadTree(QuadTreeIndex<QTBox> index) {
+    index_ = index;
   }
 
-  public void add(QTBox box) {
-    add(box, false);
-  }
-
-  protected void add(QTBox box, boolean inSplit) {
-    ++size_;
-    if (boxes_ != null) {
-      boxes_.add(box);
-      if (!inSplit) {
-        split();
-      }
-      return;
+  // Builds a tree containing all given boxes at once, see
+  //  QuadTreeIndex.bulkLoad(). The resulting tree only depends on the given
+  //  boxes and their iteration order.
+  public static SparseQuadTree bulkLoad(
+      Integer borderSize, Collection<? extends QTBox> boxes) {
+    if (borderSize == null || borderSize < 0) {
+        throw new IllegalArgumentException(
+            "borderSize == null || borderSize < 0");
     }
-    if (box.qtXMin() - borderSize_ <= midX_) {
-      if (box.qtZMin() - borderSize_ <= midZ_) {
-        nw_.add(box);
-      }
-      if (box.qtZMax() + borderSize_ > midZ_) {
-        sw_.add(box);
+    // Keeps the first of boxes comparing equal, in their iteration order
+    Set<QTBox> seen = new TreeSet<QTBox>();
+    List<QTBox> uniqueBoxes = new ArrayList<QTBox>(boxes.size());
+    for (QTBox box : boxes) {
+      if (seen.add(box)) {
+        uniqueBoxes.add(box);
       }
     }
-    if (box.qtXMax() + borderSize_ > midX_) {
-      if (box.qtZMin() - borderSize_ <= midZ_) {
-        ne_.add(box);
-      }
-      if (box.qtZMax() + borderSize_ > midZ_) {
-        se_.add(box);
+    QTBox[] unique = uniqueBoxes.toArray(new QTBox[uniqueBoxes.size()]);
+    int count = unique.length;
+    int[] xMin = new int[count];
+    int[] zMin = new int[count];
+    int[] xMax = new int[count];
+    int[] zMax = new int[count];
+    int[] yMin = null;
+    int[] yMax = null;
+    for (int i = 0; i < count; ++i) {
+      xMin[i] = unique[i].qtXMin();
+      zMin[i] = unique[i].qtZMin();
+      xMax[i] = unique[i].qtXMax();
+      zMax[i] = unique[i].qtZMax();
+      if (unique[i] instanceof QTBox3D) {
+        if (yMin == null) {
+          yMin = new int[count];
+          yMax = new int[count];
+          Arrays.fill(yMin, Integer.MIN_VALUE);
+          Arrays.fill(yMax, Integer.MAX_VALUE);
+        }
+        yMin[i] = ((QTBox3D) unique[i]).qtYMin();
+        yMax[i] = ((QTBox3D) unique[i]).qtYMax();
       }
     }
+    return new SparseQuadTree(QuadTreeIndex.bulkLoad(
+        borderSize, true, unique, xMin, yMin, zMin, xMax, yMax, zMax));
   }
 
-  public void remove(QTBox box) {
-    if (size_ <= 0) {
-      size_ = 0;
-      return;
-    }
-    --size_;
-    if (size_ == 0) {
-      boxes_ = new TreeSet<QTBox>();
-      nw_ = null;
-      ne_ = null;
-      sw_ = null;
-      se_ = null;
-      return;
-    }
-    if (boxes_ != null) {
-      boxes_.remove(box);
-      return;
-    }
-    if (box.qtXMin() - borderSize_ <= midX_) {
-      if (box.qtZMin() - borderSize_ <= midZ_) {
-        nw_.remove(box);
-      }
-      if (box.qtZMax() + borderSize_ > midZ_) {
-        sw_.remove(box);
-      }
-    }
-    if (box.qtXMax() + borderSize_ > midX_) {
-      if (box.qtZMin() - borderSize_ <= midZ_) {
-        ne_.remove(box);
-      }
-      if (box.qtZMax() + borderSize_ > midZ_) {
-        se_.remove(box);
-      }
+  public void add(QTBox box) {
+    if (box instanceof QTBox3D) {
+      QTBox3D box3D = (QTBox3D) box;
+      index_.add(box, box.qtXMin(), box3D.qtYMin(), box.qtZMin(),
+          box.qtXMax(), box3D.qtYMax(), box.qtZMax());
+    } else {
+      index_.add(box, box.qtXMin(), box.qtZMin(), box.qtXMax(), box.qtZMax());
     }
   }
 
+  public void remove(QTBox box) {
+    index_.remove(
+        box, box.qtXMin(), box.qtZMin(), box.qtXMax(), box.qtZMax());
+  }
+
   public int size() {
-    return size_;
+    return index_.size();
+  }
+
+  // Rebuilds the whole tree, see QuadTreeIndex.compact()
+  public void compact() {
+    index_.compact();
+  }
+
+  // Rebuilds part of the tree, see QuadTreeIndex.compactStep()
+  public boolean compactStep(int budget) {
+    return index_.compactStep(budget);
   }
 
   public Set<QTBox> find(int x, int y) {
@@ -120,155 +131,134 @@ public class SparseQuadTree {
   }
 
   public Set<QTBox> find(int x, int y, boolean includeBorder) {
-    int border = 0;
-    if (includeBorder) {
-      border = borderSize_;
-    }
-    if (boxes_ != null) {
-      Set<QTBox> result = new TreeSet<QTBox>();
-      // These two loops are the same except for the second doesn't include the
-      //  border adjustment for a little added performance.
-      if (includeBorder) {
-        for (QTBox box : boxes_) {
-          if (box.qtXMin() - border <= x && box.qtXMax() + border >= x
-              && box.qtZMin() - border <= y && box.qtZMax() + border >= y) {
-            result.add(box);
-          }
-        }
-      } else {
-        for (QTBox box : boxes_) {
-          if (box.qtXMin() <= x && box.qtXMax() >= x
-              && box.qtZMin() <= y && box.qtZMax() >= y) {
-            result.add(box);
-          }
-        }
-      }
-      return result;
-    }
-    if (x <= midX_) {
-      if (y <= midZ_) {
-        return nw_.find(x, y, includeBorder);
-      } else {
-        return sw_.find(x, y, includeBorder);
-      }
-    }
-    if (y <= midZ_) {
-      return ne_.find(x, y, includeBorder);
-    }
-    return se_.find(x, y, includeBorder);
+    return find(x, y, includeBorder, new TreeSet<QTBox>());
   }
 
-  protected void split() {
-    if (boxes_ == null || boxes_.size() <= maxNodeSize_) {
-      return;
-    }
-    nw_ = new SparseQuadTree(borderSize_, Quadrant.NW);
-    ne_ = new SparseQuadTree(borderSize_, Quadrant.NE);
-    sw_ = new SparseQuadTree(borderSize_, Quadrant.SW);
-    se_ = new SparseQuadTree(borderSize_, Quadrant.SE);
-    SortedSet<Integer> xAxis = new TreeSet<Integer>();
-    SortedSet<Integer> yAxis = new TreeSet<Integer>();
-    for (QTBox box : boxes_) {
-      int x;
-      int y;
-      switch (quadrant_) {
-        case NW:
-          x = box.qtXMin();
-          y = box.qtZMin();
-          break;
-        case NE:
-          x = box.qtXMax();
-          y = box.qtZMin();
-          break;
-        case SW:
-          x = box.qtXMin();
-          y = box.qtZMax();
-          break;
-        case SE:
-          x = box.qtXMax();
-          y = box.qtZMax();
-          break;
-        default:
-          x = box.qtXMid();
-          y = box.qtZMid();
-          break;
-      }
-      xAxis.add(x);
-      yAxis.add(y);
-    }
-    int counter = 0;
-    int ender = (xAxis.size() / 2) - 1;
-    for (Integer i : xAxis) {
-      if (counter >= ender) {
-        midX_ = i;
-        break;
-      }
-      ++counter;
-    }
-    counter = 0;
-    ender = (yAxis.size() / 2) - 1;
-    for (Integer i : yAxis) {
-      if (counter >= ender) {
-        midZ_ = i;
-        break;
-      }
-      ++counter;
-    }
-    for (QTBox box : boxes_) {
-      if (box.qtXMin() - borderSize_ <= midX_) {
-        if (box.qtZMin() - borderSize_ <= midZ_) {
-          nw_.add(box, true);
-        }
-        if (box.qtZMax() + borderSize_ > midZ_) {
-          sw_.add(box, true);
-        }
-      }
-      if (box.qtXMax() + borderSize_ > midX_) {
-        if (box.qtZMin() - borderSize_ <= midZ_) {
-          ne_.add(box, true);
-        }
-        if (box.qtZMax() + borderSize_ > midZ_) {
-          se_.add(box, true);
-        }
-      }
-    }
-    if (nw_.size() == boxes_.size()
-        || sw_.size() == boxes_.size()
-        || ne_.size() == boxes_.size()
-        || se_.size() == boxes_.size()) {
-      // Splitting failed as we split into an identically sized quadrent. Update
-      //  this nodes max size for next time and throw away the work we did.
-      maxNodeSize_ = boxes_.size() * 2;
-      return;
-    }
-    boolean sizeAdjusted = false;
-    if (nw_.size() >= maxNodeSize_) {
-      maxNodeSize_ = nw_.size() * 2;
-      sizeAdjusted = true;
-    }
-    if (sw_.size() >= maxNodeSize_) {
-      maxNodeSize_ = sw_.size() * 2;
-      sizeAdjusted = true;
-    }
-    if (ne_.size() >= maxNodeSize_) {
-      maxNodeSize_ = ne_.size() * 2;
-      sizeAdjusted = true;
-    }
-    if (se_.size() >= maxNodeSize_) {
-      maxNodeSize_ = se_.size() * 2;
-      sizeAdjusted = true;
-    }
-    if (sizeAdjusted) {
-      nw_.setMaxNodeSize(maxNodeSize_);
-      sw_.setMaxNodeSize(maxNodeSize_);
-      ne_.setMaxNodeSize(maxNodeSize_);
-      se_.setMaxNodeSize(maxNodeSize_);
-    }
-    boxes_ = null;
+  // The following queries don't allocate anything themselves, which makes
+  //  them suitable for checks done on every block change or player move.
+
+  // Adds all boxes containing the point to the given collection and returns
+  //  it.
+  public <C extends Collection<? super QTBox>> C find(
+      int x, int y, boolean includeBorder, C result) {
+    return index_.find(x, y, includeBorder, result);
+  }
+
+  // Hands all boxes containing the point to the visitor. Returns false if the
+  //  visitor stopped early.
+  public boolean forEach(int x, int y, boolean includeBorder,
+      SpatialVisitor<? super QTBox> visitor) {
+    return index_.forEach(x, y, includeBorder, visitor);
+  }
+
+  public boolean hasAny(int x, int y) {
+    return hasAny(x, y, false);
+  }
+
+  public boolean hasAny(int x, int y, boolean includeBorder) {
+    return index_.hasAny(x, y, includeBorder);
+  }
+
+  public QTBox findFirst(int x, int y) {
+    return findFirst(x, y, false);
+  }
+
+  // Returns any box containing the point or null if there is none. Which box
+  //  is returned when multiple match is unspecified.
+  public QTBox findFirst(int x, int y, boolean includeBorder) {
+    return index_.findFirst(x, y, includeBorder);
+  }
+
+  // Point queries taking y into account, see SpatialIndex3D
+
+  public <C extends Collection<? super QTBox>> C find(
+      int x, int y, int z, boolean includeBorder, C result) {
+    return index_.find(x, y, z, includeBorder, result);
+  }
+
+  public boolean forEach(int x, int y, int z, boolean includeBorder,
+      SpatialVisitor<? super QTBox> visitor) {
+    return index_.forEach(x, y, z, includeBorder, visitor);
+  }
+
+  public boolean hasAny(int x, int y, int z, boolean includeBorder) {
+    return index_.hasAny(x, y, z, includeBorder);
+  }
+
+  public QTBox findFirst(int x, int y, int z, boolean includeBorder) {
+    return index_.findFirst(x, y, z, includeBorder);
+  }
+
+  // Range queries, each box is reported once even if it spans multiple
+  //  leaves.
+
+  public Set<QTBox> findIntersecting(int xMin, int zMin, int xMax, int zMax) {
+    return findIntersecting(
+        xMin, zMin, xMax, zMax, false, new TreeSet<QTBox>());
+  }
+
+  // Adds all boxes overlapping the rectangle, bounds inclusive, to the given
+  //  collection and returns it.
+  public <C extends Collection<? super QTBox>> C findIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder,
+      C result) {
+    return index_.findIntersecting(
+        xMin, zMin, xMax, zMax, includeBorder, result);
+  }
+
+  public boolean hasIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder) {
+    return index_.hasIntersecting(xMin, zMin, xMax, zMax, includeBorder);
+  }
+
+  // Hands all boxes overlapping the rectangle to the visitor. Returns false
+  //  if the visitor stopped early.
+  public boolean forEachIntersecting(int xMin, int zMin, int xMax, int zMax,
+      boolean includeBorder, SpatialVisitor<? super QTBox> visitor) {
+    return index_.forEachIntersecting(
+        xMin, zMin, xMax, zMax, includeBorder, visitor);
+  }
+
+  public <C extends Collection<? super QTBox>> C findIntersecting(
+      int xMin, int yMin, int zMin, int xMax, int yMax, int zMax,
+      boolean includeBorder, C result) {
+    return index_.findIntersecting(
+        xMin, yMin, zMin, xMax, yMax, zMax, includeBorder, result);
+  }
+
+  public boolean hasIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder) {
+    return index_.hasIntersecting(
+        xMin, yMin, zMin, xMax, yMax, zMax, includeBorder);
+  }
+
+  public boolean forEachIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder,
+      SpatialVisitor<? super QTBox> visitor) {
+    return index_.forEachIntersecting(
+        xMin, yMin, zMin, xMax, yMax, zMax, includeBorder, visitor);
+  }
+
+  public Set<QTBox> findInRadius(int x, int y, int radius) {
+    return findInRadius(x, y, radius, false, new TreeSet<QTBox>());
+  }
+
+  // Adds all boxes with any point within the radius of the given point to the
+  //  given collection and returns it.
+  public <C extends Collection<? super QTBox>> C findInRadius(
+      int x, int y, int radius, boolean includeBorder, C result) {
+    return index_.findInRadius(x, y, radius, includeBorder, result);
+  }
+
+  // Hands all boxes with any point within the radius of the given point to the
+  //  visitor. Returns false if the visitor stopped early.
+  public boolean forEachInRadius(int x, int y, int radius,
+      boolean includeBorder, SpatialVisitor<? super QTBox> visitor) {
+    return index_.forEachInRadius(x, y, radius, includeBorder, visitor);
   }
 
   public int getBorderSize() {
-    return borderSize_;
+    return index_.getBorderSize();
   }
 
   public String boxCoord(QTBox box) {
@@ -278,41 +268,12 @@ public class SparseQuadTree {
 
   @Override
   public String toString() {
-    StringBuilder sb = new StringBuilder();
-    sb.append(quadrant_);
-    if (boxes_ != null) {
-      sb.append('[');
-      for (QTBox box : boxes_) {
-        sb.append(boxCoord(box));
-      }
-      sb.append(']');
-      return sb.toString();
-    }
-    sb.append(String.format("{{%d,%d}", midX_, midZ_));
-    sb.append(nw_.toString());
-    sb.append(',');
-    sb.append(sw_.toString());
-    sb.append(',');
-    sb.append(ne_.toString());
-    sb.append(',');
-    sb.append(se_.toString());
-    sb.append('}');
-    return sb.toString();
-  }
-
-  protected void setMaxNodeSize(int size) {
-    maxNodeSize_ = size;
-  }
-
-  protected Integer borderSize_ = 0;
-  protected Quadrant quadrant_;
-  protected Integer midX_ = null;
-  protected Integer midZ_ = null;
-  protected int size_;
-  protected int maxNodeSize_ = MAX_NODE_SIZE;
-  protected Set<QTBox> boxes_;
-  protected SparseQuadTree nw_;
-  protected SparseQuadTree ne_;
-  protected SparseQuadTree sw_;
-  protected SparseQuadTree se_;
+    return index_.toString();
+  }
+
+  QuadTreeIndex<QTBox> getIndex() {
+    return index_;
+  }
+
+  private final QuadTreeIndex<QTBox> index_;
 }
@@ -0,0 +1,7 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+// Maps values to the ids MappedSpatialIndex stores in place of them.
+public interface SpatialIdMapper<T> {
+  // Equal values must have the same id, different values different ids.
+  public long getId(T value);
+}
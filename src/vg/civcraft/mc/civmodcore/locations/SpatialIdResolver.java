@@ -0,0 +1,10 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+// Turns ids stored by MappedSpatialIndex back into values, see
+//  SpatialIdMapper.
+public interface SpatialIdResolver<T> {
+  // Called at most once per id until the cache of the index is cleared.
+  //  Returning null drops the value from all query results, for example
+  //  because it was deleted after the snapshot was written.
+  public T resolve(long id);
+}
@@ -0,0 +1,64 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+import java.util.Collection;
+
+// Index of arbitrary values by axis aligned boxes on the x/z plane.
+//
+// The bounds of a value are passed in when it's added and kept by the index as
+//  primitive ints, values don't have to provide their own coordinates. All
+//  bounds are inclusive. Values are identified by equals(), the same value
+//  is only stored once. Removing a value requires the bounds it was added
+//  with.
+//
+// Every index has a border size: a box is considered to contain a point within
+//  the border size of its bounds if a query includes the border.
+
+public interface SpatialIndex<T> {
+  public void add(T value, int xMin, int zMin, int xMax, int zMax);
+
+  public void remove(T value, int xMin, int zMin, int xMax, int zMax);
+
+  public int size();
+
+  public int getBorderSize();
+
+  // Adds all values whose box contains the point to the given collection and
+  //  returns it.
+  public <C extends Collection<? super T>> C find(
+      int x, int z, boolean includeBorder, C result);
+
+  // Hands all values whose box contains the point to the visitor. Returns
+  //  false if the visitor stopped early.
+  public boolean forEach(int x, int z, boolean includeBorder,
+      SpatialVisitor<? super T> visitor);
+
+  public boolean hasAny(int x, int z, boolean includeBorder);
+
+  // Returns any value whose box contains the point or null if there is none.
+  public T findFirst(int x, int z, boolean includeBorder);
+
+  // Adds all values whose box overlaps the rectangle to the given collection
+  //  and returns it. Each value is added once.
+  public <C extends Collection<? super T>> C findIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder,
+      C result);
+
+  public boolean hasIntersecting(
+      int xMin, int zMin, int xMax, int zMax, boolean includeBorder);
+
+  // Hands all values whose box overlaps the rectangle to the visitor, each of
+  //  them once. Returns false if the visitor stopped early.
+  public boolean forEachIntersecting(int xMin, int zMin, int xMax, int zMax,
+      boolean includeBorder, SpatialVisitor<? super T> visitor);
+
+  // Adds all values whose box has any point within the radius of the given
+  //  point to the given collection and returns it. Each value is added once.
+  public <C extends Collection<? super T>> C findInRadius(
+      int x, int z, int radius, boolean includeBorder, C result);
+
+  // Hands all values whose box has any point within the radius of the given
+  //  point to the visitor, each of them once. Returns false if the visitor
+  //  stopped early.
+  public boolean forEachInRadius(int x, int z, int radius,
+      boolean includeBorder, SpatialVisitor<? super T> visitor);
+}
@@ -0,0 +1,45 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+import java.util.Collection;
+
+// SpatialIndex whose values may also be bounded vertically.
+//
+// Values added through the methods of SpatialIndex span all y, so they match
+//  every y and the queries of SpatialIndex ignore y altogether. The border
+//  size widens boxes vertically just like it does horizontally. Removing a
+//  value only requires its x/z bounds.
+
+public interface SpatialIndex3D<T> extends SpatialIndex<T> {
+  public void add(
+      T value, int xMin, int yMin, int zMin, int xMax, int yMax, int zMax);
+
+  // Adds all values whose box contains the point to the given collection and
+  //  returns it.
+  public <C extends Collection<? super T>> C find(
+      int x, int y, int z, boolean includeBorder, C result);
+
+  // Hands all values whose box contains the point to the visitor. Returns
+  //  false if the visitor stopped early.
+  public boolean forEach(int x, int y, int z, boolean includeBorder,
+      SpatialVisitor<? super T> visitor);
+
+  public boolean hasAny(int x, int y, int z, boolean includeBorder);
+
+  // Returns any value whose box contains the point or null if there is none.
+  public T findFirst(int x, int y, int z, boolean includeBorder);
+
+  // Adds all values whose box overlaps the cuboid to the given collection and
+  //  returns it. Each value is added once.
+  public <C extends Collection<? super T>> C findIntersecting(
+      int xMin, int yMin, int zMin, int xMax, int yMax, int zMax,
+      boolean includeBorder, C result);
+
+  public boolean hasIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder);
+
+  // Hands all values whose box overlaps the cuboid to the visitor, each of
+  //  them once. Returns false if the visitor stopped early.
+  public boolean forEachIntersecting(int xMin, int yMin, int zMin,
+      int xMax, int yMax, int zMax, boolean includeBorder,
+      SpatialVisitor<? super T> visitor);
+}
@@ -0,0 +1,8 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+// Callback for spatial queries which hands over each match directly instead
+//  of collecting them first.
+public interface SpatialVisitor<T> {
+  // Called once for every match. Returning false stops the query.
+  public boolean visit(T value);
+}
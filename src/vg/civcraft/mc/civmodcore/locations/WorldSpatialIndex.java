@@ -0,0 +1,128 @@
+package vg.civcraft.mc.civmodcore.locations;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+// Keeps a separate SpatialIndex per world, so boxes of different worlds never
+//  share one index. Worlds are identified by their UID, which unlike their
+//  name can't change. Indices are created on first use, by default as a
+//  ChunkSpatialHash, subclasses may override createIndex() to use another
+//  implementation. Not thread safe, neither are the indices it creates by
+//  default.
+
+public class WorldSpatialIndex<T> {
+
+  public WorldSpatialIndex() {
+    this(0);
+  }
+
+  public WorldSpatialIndex(int borderSize) {
+    if (borderSize < 0) {
+      throw new IllegalArgumentException("borderSize < 0");
+    }
+    borderSize_ = borderSize;
+    indices_ = new HashMap<UUID, SpatialIndex<T>>();
+  }
+
+  protected SpatialIndex<T> createIndex(UUID world) {
+    return new ChunkSpatialHash<T>(borderSize_);
+  }
+
+  // Returns the index of the given world or null if nothing was added to it
+  public SpatialIndex<T> get(UUID world) {
+    return indices_.get(world);
+  }
+
+  public SpatialIndex<T> get(World world) {
+    return get(world.getUID());
+  }
+
+  public SpatialIndex<T> getOrCreate(UUID world) {
+    SpatialIndex<T> index = indices_.get(world);
+    if (index == null) {
+      index = createIndex(world);
+      indices_.put(world, index);
+    }
+    return index;
+  }
+
+  public SpatialIndex<T> getOrCreate(World world) {
+    return getOrCreate(world.getUID());
+  }
+
+  // Drops the index of the given world, for example once it was unloaded.
+  //  Returns the dropped index or null if there was none.
+  public SpatialIndex<T> remove(UUID world) {
+    return indices_.remove(world);
+  }
+
+  public void add(UUID world, T value, int xMin, int zMin, int xMax, int zMax) {
+    getOrCreate(world).add(value, xMin, zMin, xMax, zMax);
+  }
+
+  public void remove(
+      UUID world, T value, int xMin, int zMin, int xMax, int zMax) {
+    SpatialIndex<T> index = indices_.get(world);
+    if (index != null) {
+      index.remove(value, xMin, zMin, xMax, zMax);
+    }
+  }
+
+  public int getBorderSize() {
+    return borderSize_;
+  }
+
+  // Total amount of values over all worlds
+  public int size() {
+    int size = 0;
+    for (SpatialIndex<T> index : indices_.values()) {
+      size += index.size();
+    }
+    return size;
+  }
+
+  // Adds all values whose box contains the block of the given location to the
+  //  given collection and returns it.
+  public <C extends Collection<? super T>> C find(
+      Location location, boolean includeBorder, C result) {
+    SpatialIndex<T> index = indices_.get(location.getWorld().getUID());
+    if (index == null) {
+      return result;
+    }
+    return index.find(location.getBlockX(), location.getBlockZ(),
+        includeBorder, result);
+  }
+
+  public boolean forEach(Location location, boolean includeBorder,
+      SpatialVisitor<? super T> visitor) {
+    SpatialIndex<T> index = indices_.get(location.getWorld().getUID());
+    if (index == null) {
+      return true;
+    }
+    return index.forEach(location.getBlockX(), location.getBlockZ(),
+        includeBorder, visitor);
+  }
+
+  public boolean hasAny(Location location, boolean includeBorder) {
+    SpatialIndex<T> index = indices_.get(location.getWorld().getUID());
+    return index != null && index.hasAny(
+        location.getBlockX(), location.getBlockZ(), includeBorder);
+  }
+
+  public T findFirst(Location location, boolean includeBorder) {
+    SpatialIndex<T> index = indices_.get(location.getWorld().getUID());
+    if (index == null) {
+      return null;
+    }
+    return index.findFirst(
+        location.getBlockX(), location.getBlockZ(), includeBorder);
+  }
+
+  private final int borderSize_;
+  private final Map<UUID, SpatialIndex<T>> indices_;
+}
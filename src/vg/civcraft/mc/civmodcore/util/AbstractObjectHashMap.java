@@ -0,0 +1,249 @@
+package vg.civcraft.mc.civmodcore.util;
+
+import java.util.Arrays;
+
+/**
+ * Base class of hash maps from objects to primitive values using open
+ * addressing with linear probing. This class manages the keys, probing,
+ * resizing and removal, subclasses store their values in a primitive array
+ * parallel to the keys and keep it in sync through the abstract hooks.
+ *
+ * Entries can be iterated without allocating anything by looping over all
+ * slots from 0 to {@link #capacity()} and skipping slots for which
+ * {@link #keyAt(int)} returns null. Removing entries while doing so may move
+ * not yet visited entries into already visited slots, so removals should be
+ * collected and applied afterwards.
+ *
+ * Null keys are not permitted.
+ *
+ * @param <K>
+ *            Key type
+ */
+public abstract class AbstractObjectHashMap<K> {
+	protected static final int MIN_CAPACITY = 8;
+
+	private Object[] keys;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+
+	/**
+	 * @param expectedSize
+	 *            How many entries this map is expected to hold, used to size
+	 *            the map so it doesn't have to grow while filling it
+	 */
+	protected AbstractObjectHashMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	protected AbstractObjectHashMap(AbstractObjectHashMap<? extends K> other) {
+		keys = other.keys.clone();
+		size = other.size;
+		mask = other.mask;
+		resizeThreshold = other.resizeThreshold;
+	}
+
+	/**
+	 * @return How many entries are in this map
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Removes all entries, but keeps the allocated capacity so the map can be
+	 * refilled without growing again
+	 */
+	public void clear() {
+		if (size != 0) {
+			Arrays.fill(keys, null);
+			clearValues();
+			size = 0;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            Key to look up
+	 * @return Slot the given key is stored in or -1 if it isn't in this map
+	 */
+	public int indexOf(Object key) {
+		if (key == null) {
+			return -1;
+		}
+		int slot = mix(key.hashCode()) & mask;
+		Object current;
+		while ((current = keys[slot]) != null) {
+			if (current == key || current.equals(key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Amount of slots in this map, valid slot indices range from 0 to
+	 *         this value (exclusive)
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @param slot
+	 *            Slot to read
+	 * @return Key stored in the given slot or null if the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public K keyAt(int slot) {
+		return (K) keys[slot];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				if (sb.length() > 1) {
+					sb.append(", ");
+				}
+				sb.append(keys[i]).append('=');
+				appendValue(sb, i);
+			}
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Finds the slot the given key is stored in or the empty slot it would
+	 * have to be inserted into
+	 */
+	protected final int findSlot(Object key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Null keys are not supported");
+		}
+		int slot = mix(key.hashCode()) & mask;
+		Object current;
+		while ((current = keys[slot]) != null) {
+			if (current == key || current.equals(key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Stores the given key in the given empty slot returned by
+	 * {@link #findSlot(Object)}. The value of the slot has to be written
+	 * before, because this may resize the map and move the entry
+	 */
+	protected final void insertKeyAt(int slot, Object key) {
+		keys[slot] = key;
+		if (++size > resizeThreshold) {
+			rehash(keys.length * 2);
+		}
+	}
+
+	/**
+	 * Clears the given slot and shifts following entries of the same probe
+	 * sequence back, so lookups never have to skip over deleted markers
+	 */
+	protected final void removeAt(int slot) {
+		size--;
+		int gap = slot;
+		int current = (gap + 1) & mask;
+		Object key;
+		while ((key = keys[current]) != null) {
+			int ideal = mix(key.hashCode()) & mask;
+			// move the entry into the gap if its ideal slot isn't located
+			// cyclically between the gap and its current position
+			if (((current - ideal) & mask) >= ((current - gap) & mask)) {
+				keys[gap] = key;
+				moveValue(current, gap);
+				gap = current;
+			}
+			current = (current + 1) & mask;
+		}
+		keys[gap] = null;
+		clearValue(gap);
+	}
+
+	/**
+	 * Replaces the value array by one of the current {@link #capacity()},
+	 * moving the value of each old slot to the one given for it
+	 *
+	 * @param newSlots
+	 *            New slot of each old slot, -1 for empty slots
+	 */
+	protected abstract void rehashValues(int[] newSlots);
+
+	/**
+	 * Copies the value of one slot to another one
+	 */
+	protected abstract void moveValue(int from, int to);
+
+	/**
+	 * Resets the value of the given slot, which was just emptied
+	 */
+	protected abstract void clearValue(int slot);
+
+	/**
+	 * Resets the values of all slots
+	 */
+	protected abstract void clearValues();
+
+	protected abstract void appendValue(StringBuilder sb, int slot);
+
+	private void rehash(int newCapacity) {
+		Object[] oldKeys = keys;
+		int[] newSlots = new int[oldKeys.length];
+		allocate(newCapacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			Object key = oldKeys[i];
+			if (key == null) {
+				newSlots[i] = -1;
+				continue;
+			}
+			int slot = mix(key.hashCode()) & mask;
+			while (keys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			newSlots[i] = slot;
+		}
+		rehashValues(newSlots);
+	}
+
+	private void allocate(int capacity) {
+		keys = new Object[capacity];
+		mask = capacity - 1;
+		resizeThreshold = (capacity * 3) / 4;
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while ((capacity * 3) / 4 < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Spreads the bits of the given hash, so keys with similar hashes don't
+	 * end up in clustered slots
+	 */
+	private static int mix(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
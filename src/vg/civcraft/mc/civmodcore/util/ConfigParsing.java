@@ -13,6 +13,7 @@ import org.bukkit.potion.PotionEffectType;
 
 import com.google.common.collect.Lists;
 
+import vg.civcraft.mc.civmodcore.itemHandling.ImmutableItemMap;
 import vg.civcraft.mc.civmodcore.itemHandling.ItemMap;
 
 public class ConfigParsing {
@@ -64,6 +65,20 @@ public class ConfigParsing {
 		}
 		return result;
 	}
+
+	/**
+	 * Creates an immutable itemmap containing all the items listed in the
+	 * given config section. Use this for item maps which are only read after
+	 * parsing, like recipe inputs, so they can be shared without cloning
+	 * 
+	 * @param config
+	 *            ConfigurationSection to parse the items from
+	 * @return The item map created
+	 */
+	public static ImmutableItemMap parseImmutableItemMap(
+			ConfigurationSection config) {
+		return parseItemMap(config).toImmutable();
+	}
 	
 	
 
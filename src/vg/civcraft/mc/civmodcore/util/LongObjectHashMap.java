@@ -0,0 +1,263 @@
+package vg.civcraft.mc.civmodcore.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive longs to objects using open addressing with linear
+ * probing. Unlike a HashMap<Long, V> this neither boxes keys nor allocates an
+ * entry object per mapping, the whole map consists of one key and one value
+ * array.
+ *
+ * Entries can be iterated without allocating anything by looping over all
+ * slots from 0 to {@link #capacity()} and skipping slots for which
+ * {@link #valueAt(int)} returns null. Removing entries while doing so may
+ * move not yet visited entries into already visited slots, so removals should
+ * be collected and applied afterwards.
+ *
+ * Null values are not permitted, an empty slot is marked by a null value.
+ *
+ * @param <V>
+ *            Value type
+ */
+public class LongObjectHashMap<V> {
+	private static final int MIN_CAPACITY = 8;
+
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+
+	public LongObjectHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            How many entries this map is expected to hold, used to size
+	 *            the map so it doesn't have to grow while filling it
+	 */
+	public LongObjectHashMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * @return How many entries are in this map
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param key
+	 *            Key to look up
+	 * @return Value mapped to the given key or null if the key isn't in this
+	 *         map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = indexOf(key);
+		return slot < 0 ? null : (V) values[slot];
+	}
+
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Maps the given key to the given value, replacing any existing mapping
+	 *
+	 * @param key
+	 *            Key to insert
+	 * @param value
+	 *            Value to associate with the key, may not be null
+	 * @return Previous value of the key or null if it wasn't in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Null values are not supported");
+		}
+		int slot = findSlot(key);
+		if (values[slot] != null) {
+			V old = (V) values[slot];
+			values[slot] = value;
+			return old;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeThreshold) {
+			rehash(keys.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the given key from this map
+	 *
+	 * @param key
+	 *            Key to remove
+	 * @return Value the key was mapped to or null if it wasn't in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int slot = indexOf(key);
+		if (slot < 0) {
+			return null;
+		}
+		V old = (V) values[slot];
+		removeAt(slot);
+		return old;
+	}
+
+	/**
+	 * Removes all entries, but keeps the allocated capacity so the map can be
+	 * refilled without growing again
+	 */
+	public void clear() {
+		if (size != 0) {
+			Arrays.fill(keys, 0L);
+			Arrays.fill(values, null);
+			size = 0;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            Key to look up
+	 * @return Slot the given key is stored in or -1 if it isn't in this map
+	 */
+	public int indexOf(long key) {
+		int slot = mix(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Amount of slots in this map, valid slot indices range from 0 to
+	 *         this value (exclusive)
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @param slot
+	 *            Slot to read
+	 * @return Key stored in the given slot, meaningless if the slot is empty
+	 */
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            Slot to read
+	 * @return Value stored in the given slot or null if the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null) {
+				if (sb.length() > 1) {
+					sb.append(", ");
+				}
+				sb.append(keys[i]).append('=').append(values[i]);
+			}
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Finds the slot the given key is stored in or the empty slot it would
+	 * have to be inserted into
+	 */
+	private int findSlot(long key) {
+		int slot = mix(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Clears the given slot and shifts following entries of the same probe
+	 * sequence back, so lookups never have to skip over deleted markers
+	 */
+	private void removeAt(int slot) {
+		size--;
+		int gap = slot;
+		int current = (gap + 1) & mask;
+		while (values[current] != null) {
+			int ideal = mix(keys[current]) & mask;
+			// move the entry into the gap if its ideal slot isn't located
+			// cyclically between the gap and its current position
+			if (((current - ideal) & mask) >= ((current - gap) & mask)) {
+				keys[gap] = keys[current];
+				values[gap] = values[current];
+				gap = current;
+			}
+			current = (current + 1) & mask;
+		}
+		keys[gap] = 0L;
+		values[gap] = null;
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(newCapacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = mix(oldKeys[i]) & mask;
+				while (values[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeThreshold = (capacity * 3) / 4;
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while ((capacity * 3) / 4 < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Spreads the bits of the given key, so keys which only differ in their
+	 * upper or lower half don't end up in clustered slots
+	 */
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
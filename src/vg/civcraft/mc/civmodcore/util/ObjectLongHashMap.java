@@ -0,0 +1,209 @@
+package vg.civcraft.mc.civmodcore.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from objects to primitive longs using open addressing with linear
+ * probing. Unlike a HashMap<K, Long> this neither boxes values nor
+ * allocates an entry object per mapping, the whole map consists of one key
+ * and one value array. See {@link AbstractObjectHashMap} for how to iterate
+ * it.
+ *
+ * Null keys are not permitted, absent keys are treated as having a value of
+ * 0 by all accessors which don't take an explicit default value.
+ *
+ * @param <K>
+ *            Key type
+ */
+public class ObjectLongHashMap<K> extends AbstractObjectHashMap<K> {
+	private long[] values;
+
+	public ObjectLongHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            How many entries this map is expected to hold, used to size
+	 *            the map so it doesn't have to grow while filling it
+	 */
+	public ObjectLongHashMap(int expectedSize) {
+		super(expectedSize);
+		values = new long[capacity()];
+	}
+
+	public ObjectLongHashMap(ObjectLongHashMap<? extends K> other) {
+		super(other);
+		values = other.values.clone();
+	}
+
+	/**
+	 * @param key
+	 *            Key to look up
+	 * @return Value mapped to the given key or 0 if the key isn't in this map
+	 */
+	public long get(Object key) {
+		return get(key, 0);
+	}
+
+	/**
+	 * @param key
+	 *            Key to look up
+	 * @param defaultValue
+	 *            Value to return if the key isn't in this map
+	 * @return Value mapped to the given key or the given default value if the
+	 *         key isn't in this map
+	 */
+	public long get(Object key, long defaultValue) {
+		int slot = indexOf(key);
+		return slot < 0 ? defaultValue : values[slot];
+	}
+
+	/**
+	 * Maps the given key to the given value, replacing any existing mapping
+	 *
+	 * @param key
+	 *            Key to insert
+	 * @param value
+	 *            Value to associate with the key
+	 * @return Previous value of the key or 0 if it wasn't in the map
+	 */
+	public long put(K key, long value) {
+		int slot = findSlot(key);
+		if (keyAt(slot) != null) {
+			long old = values[slot];
+			values[slot] = value;
+			return old;
+		}
+		values[slot] = value;
+		insertKeyAt(slot, key);
+		return 0;
+	}
+
+	/**
+	 * Adds the given delta to the value of the given key. If the key isn't in
+	 * this map yet, it will be inserted with the delta as value
+	 *
+	 * @param key
+	 *            Key to modify
+	 * @param delta
+	 *            Amount to add
+	 * @return New value of the key
+	 */
+	public long addTo(K key, long delta) {
+		int slot = findSlot(key);
+		if (keyAt(slot) != null) {
+			values[slot] += delta;
+			return values[slot];
+		}
+		values[slot] = delta;
+		insertKeyAt(slot, key);
+		return delta;
+	}
+
+	/**
+	 * Removes the given key from this map
+	 *
+	 * @param key
+	 *            Key to remove
+	 * @return Value the key was mapped to or 0 if it wasn't in the map
+	 */
+	public long remove(Object key) {
+		int slot = indexOf(key);
+		if (slot < 0) {
+			return 0;
+		}
+		long old = values[slot];
+		removeAt(slot);
+		return old;
+	}
+
+	/**
+	 * @param slot
+	 *            Slot to read
+	 * @return Value stored in the given slot, meaningless if the slot is empty
+	 */
+	public long valueAt(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * Overwrites the value of an occupied slot
+	 *
+	 * @param slot
+	 *            Slot to write to
+	 * @param value
+	 *            New value
+	 */
+	public void setValueAt(int slot, long value) {
+		values[slot] = value;
+	}
+
+	@Override
+	public int hashCode() {
+		// same as the hash of an equivalent java.util.Map
+		int res = 0;
+		for (int i = 0; i < values.length; i++) {
+			Object key = keyAt(i);
+			if (key != null) {
+				res += key.hashCode() ^ (int) (values[i] ^ (values[i] >>> 32));
+			}
+		}
+		return res;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof ObjectLongHashMap)) {
+			return false;
+		}
+		ObjectLongHashMap<?> other = (ObjectLongHashMap<?>) o;
+		if (other.size() != size()) {
+			return false;
+		}
+		for (int i = 0; i < values.length; i++) {
+			Object key = keyAt(i);
+			if (key != null) {
+				int otherSlot = other.indexOf(key);
+				if (otherSlot < 0 || other.values[otherSlot] != values[i]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected void rehashValues(int[] newSlots) {
+		long[] oldValues = values;
+		values = new long[capacity()];
+		for (int i = 0; i < newSlots.length; i++) {
+			if (newSlots[i] >= 0) {
+				values[newSlots[i]] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	protected void moveValue(int from, int to) {
+		values[to] = values[from];
+	}
+
+	@Override
+	protected void clearValue(int slot) {
+		values[slot] = 0;
+	}
+
+	@Override
+	protected void clearValues() {
+		Arrays.fill(values, 0);
+	}
+
+	@Override
+	protected void appendValue(StringBuilder sb, int slot) {
+		sb.append(values[slot]);
+	}
+}